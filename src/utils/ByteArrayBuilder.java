@@ -1,70 +1,311 @@
 package utils;
 
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.CharBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Arrays;
 import java.util.List;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.StampedLock;
+import java.util.zip.CRC32C;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
 
-public class ByteArrayBuilder implements Cloneable {
+public class ByteArrayBuilder implements Cloneable, AutoCloseable {
 
-    private class Buffer {
+    private static final byte[] EMPTY = {};
 
-        private final List<byte[]> store = Collections.synchronizedList(new ArrayList<>());
-        private final AtomicInteger size = new AtomicInteger();
+    private static final VarHandle SHORT_BE = MethodHandles.byteArrayViewVarHandle(short[].class, ByteOrder.BIG_ENDIAN);
+    private static final VarHandle SHORT_LE = MethodHandles.byteArrayViewVarHandle(short[].class, ByteOrder.LITTLE_ENDIAN);
+    private static final VarHandle INT_BE = MethodHandles.byteArrayViewVarHandle(int[].class, ByteOrder.BIG_ENDIAN);
+    private static final VarHandle INT_LE = MethodHandles.byteArrayViewVarHandle(int[].class, ByteOrder.LITTLE_ENDIAN);
+    private static final VarHandle LONG_BE = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.BIG_ENDIAN);
+    private static final VarHandle LONG_LE = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
 
-        private synchronized void reset() {
-            size.set(0);
-            store.clear();
-        }
-    }
+    /**
+     * Per-thread room for encoding one value in concurrent append mode, where
+     * values go through the lock-free append path instead of the tail.
+     */
+    private static final ThreadLocal<byte[]> SCRATCH = ThreadLocal.withInitial(() -> new byte[10]);
+
+    /**
+     * The most buffers handed to one gathering write; kept under the usual
+     * IOV_MAX of the operating system.
+     */
+    private static final int MAX_GATHER = 1024;
+
+    /**
+     * How many appended bytes an eager checksum lets build up before it folds
+     * them in; small enough that they are still in cache.
+     */
+    private static final int CHECKSUM_BATCH = 4096;
+
+    /**
+     * The size of the working buffer of a compression stage that reads from
+     * or writes to a stream.
+     */
+    private static final int COMPRESSION_BUFFER_SIZE = 1 << 16;
+
+    private static final int MIN_TAIL_SIZE = 256;
+    private static final int MAX_TAIL_SIZE = 1 << 20;
 
-    private final Buffer buffer;
-    private byte[] realStore = {};
+    /**
+     * Guards the contents of the builder. Its write lock is the only lock a
+     * writer takes, once, for the whole of its change. Readers that walk the
+     * segments share its read lock. Single-byte reads and
+     * {@link ByteArrayBuilder#length()} are optimistic: they take no lock at
+     * all unless a write overlapped them, so they never hold up appends. The
+     * lock is not reentrant, so nothing that holds it calls a public method
+     * of the builder.
+     */
+    private final StampedLock lock = new StampedLock();
+    /**
+     * The lock-free staging area used in concurrent append mode; null
+     * otherwise.
+     */
+    private volatile ConcurrentAppendBuffer appender;
+    /**
+     * The reconciled data, held as a piece table. Appended arrays are kept as
+     * separate segments, in the order in which they arrived; a contiguous
+     * array is only built when {@link ByteArrayBuilder#getBytes()} asks for
+     * one. A segment is a range of its array: segment <code>i</code> is
+     * <code>lengths[i]</code> bytes of <code>segments[i]</code> starting at
+     * <code>offsets[i]</code>. Inserts and removals split segments rather
+     * than copy the data around them.
+     */
+    private byte[][] segments = new byte[8][];
+    private int[] offsets = new int[8];
+    private int[] lengths = new int[8];
+    /**
+     * The segment offset table. <code>starts[i]</code> is the index in the
+     * builder of the first byte of segment <code>i</code>.
+     */
+    private int[] starts = new int[8];
+    /**
+     * The owner token of each segment. A segment may only be written in place
+     * while its token is {@link ByteArrayBuilder#owner}; otherwise it may be
+     * shared with a snapshot or a view, and is copied before the write.
+     */
+    private Object[] owners = new Object[8];
+    private Object owner = new Object();
+    /**
+     * True while the arrays of the segment table are shared with a snapshot.
+     * The table is then copied before it is changed.
+     */
+    private boolean tableShared;
+    private int segmentCount;
+    private int size;
+    /**
+     * The segment that served the most recent lookup. Sequential reads hit it
+     * without a search.
+     */
+    private int lastSegment;
+    /**
+     * An array allocated by the builder for small writes, and the index in it
+     * where the next write goes. While the last segment is the range of this
+     * array that ends at <code>tailEnd</code>, writes extend that segment in
+     * place.
+     */
+    private byte[] tail;
+    private int tailEnd;
+    /**
+     * Sizes the tail arrays.
+     */
+    private volatile GrowthPolicy growthPolicy = GrowthPolicy.PROPORTIONAL;
+    /**
+     * The encoder of the last charset other than UTF-8 and US-ASCII that
+     * text was appended in, kept for the next text in the same charset.
+     */
+    private CharsetEncoder encoder;
+    /**
+     * The byte order of the put methods.
+     */
+    private volatile boolean bigEndian = true;
+    /**
+     * Where tail arrays come from, if anywhere, and the arrays taken from it
+     * that are still held by the builder.
+     */
+    private final SegmentPool pool;
+    private List<byte[]> pooled = new ArrayList<>();
+    /**
+     * The running checksum of the first <code>checksummed</code> bytes, or
+     * null until a checksum is first asked for. An edit that touches those
+     * bytes resets it.
+     */
+    private CRC32C crc;
+    private int checksummed;
+    /**
+     * If true, appends fold their bytes into the checksum while the bytes are
+     * still in cache, rather than leaving them for
+     * {@link ByteArrayBuilder#checksum()}.
+     */
+    private boolean eagerChecksum;
 
     public ByteArrayBuilder() {
-        buffer = new Buffer();
+        pool = null;
     }
 
-    public synchronized void sync() {
-        reconcile();
+    /**
+     *
+     * @param pool The pool that the builder draws its tail arrays from. They
+     * are handed back when the builder is cleared or closed, or when
+     * {@link ByteArrayBuilder#getBytes()} merges them into one array.
+     */
+    public ByteArrayBuilder(SegmentPool pool) {
+        this.pool = pool;
     }
 
-    public synchronized void clear() {
-        realStore = new byte[]{};
-        buffer.reset();
+    /**
+     * Creates a builder whose first tail array has room for
+     * <code>initialCapacity</code> bytes. A build that stays within that
+     * size allocates no further array, and
+     * {@link ByteArrayBuilder#getBytes()} hands the array over without a copy
+     * once it is exactly full.
+     *
+     * @param initialCapacity The number of bytes to make room for
+     */
+    public ByteArrayBuilder(int initialCapacity) {
+        this();
+        if (initialCapacity < 0) {
+            throw new IllegalArgumentException("initialCapacity must be >= 0");
+        }
+        if (initialCapacity > 0) {
+            tail = new byte[initialCapacity];
+        }
     }
-    
+
     /**
      *
-     * @param lng A long number
-     * @return its byte array representation
+     * @param concurrentAppends If true, the builder is created in concurrent
+     * append mode. In this mode the append methods take no lock at all: each
+     * producer thread reserves its range with an atomic add on a shared write
+     * offset and copies its bytes into place, so append throughput scales with
+     * the number of producers. The order of the data is the order in which the
+     * ranges were reserved. {@link ByteArrayBuilder#sync()} and every read
+     * pick up only the appends that have finished copying; they never wait
+     * for the others.
      */
-    private static byte[] toBytes(long lng) {
-        byte[] b = new byte[]{
-            (byte) lng,
-            (byte) (lng >> 8),
-            (byte) (lng >> 16),
-            (byte) (lng >> 24),
-            (byte) (lng >> 32),
-            (byte) (lng >> 40),
-            (byte) (lng >> 48),
-            (byte) (lng >> 56)};
-        return b;
+    public ByteArrayBuilder(boolean concurrentAppends) {
+        this();
+        if (concurrentAppends) {
+            appender = new ConcurrentAppendBuffer();
+        }
+    }
+
+    public void sync() {
+        long stamp = lock.writeLock();
+        try {
+            reconcile();
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    public void clear() {
+        long stamp = lock.writeLock();
+        try {
+            resetSegments();
+            releasePooled();
+            invalidateChecksum(0);
+            ConcurrentAppendBuffer app = appender;
+            if (app != null) {
+                //Appends still copying into the old ranges are dropped with them.
+                app.discard();
+                app.setLength(0);
+            }
+        } finally {
+            lock.unlockWrite(stamp);
+        }
     }
 
     /**
+     * Makes room for the next <code>n</code> bytes of small appends in one
+     * array, so that they allocate nothing and land next to each other.
+     * Arrays appended by reference do not use this room. In concurrent append
+     * mode this does nothing, as appends do not go through the tail there.
      *
-     * @param value An integer number
-     * @return its byte array representation
+     * @param n The number of bytes to make room for
+     */
+    public void ensureCapacity(int n) {
+        if (n < 0) {
+            throw new IllegalArgumentException("n must be >= 0");
+        }
+        if (appender != null) {
+            return;
+        }
+        long stamp = lock.writeLock();
+        try {
+            int left = tail == null ? 0 : tail.length - tailEnd;
+            if (left < n) {
+                newTail(n);
+            }
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Lets go of the room the builder holds but does not use: the unused end
+     * of the tail array, which costs a copy of its used part, and the unused
+     * end of the segment table.
      */
-    private static byte[] toBytes(int value) {
-        return new byte[]{
-            (byte) ((value >> 24) & 0xff),
-            (byte) ((value >> 16) & 0xff),
-            (byte) ((value >> 8) & 0xff),
-            (byte) ((value >> 0) & 0xff),};
+    public void trimToSize() {
+        long stamp = lock.writeLock();
+        try {
+            reconcile();
+            if (tail != null && tailEnd < tail.length) {
+                byte[] old = tail;
+                byte[] trimmed = tailEnd == 0 ? EMPTY : Arrays.copyOf(old, tailEnd);
+                for (int i = 0; i < segmentCount; i++) {
+                    if (segments[i] == old) {
+                        unshareTable();
+                        segments[i] = trimmed;
+                    }
+                }
+                tail = tailEnd == 0 ? null : trimmed;
+                //Only arrays that no snapshot or view refers to are in the pooled list.
+                if (pooled.remove(old)) {
+                    pool.release(old);
+                }
+            }
+            int capacity = Math.max(8, segmentCount);
+            if (segments.length > capacity) {
+                segments = Arrays.copyOf(segments, capacity);
+                offsets = Arrays.copyOf(offsets, capacity);
+                lengths = Arrays.copyOf(lengths, capacity);
+                starts = Arrays.copyOf(starts, capacity);
+                owners = Arrays.copyOf(owners, capacity);
+                tableShared = false;
+            }
+        } finally {
+            lock.unlockWrite(stamp);
+        }
     }
 
+    /**
+     * Empties the builder and hands its tail arrays back to its pool. The
+     * builder may still be used afterwards.
+     */
+    @Override
+    public void close() {
+        clear();
+    }
+    
     /**
      * Converts a shorts array to an array of bytes
      *
@@ -88,59 +329,477 @@ public class ByteArrayBuilder implements Cloneable {
      * to the original at all, except for the fact that it holds exactly same
      * data at the instant of cloning; alone. Subsequent modifications to the
      * original {@link ByteArrayBuilder} have no effect on the clone.
+     * @see ByteArrayBuilder#snapshot()
      */
     @Override
-    public synchronized ByteArrayBuilder clone() {
-        reconcile();
-        ByteArrayBuilder b = new ByteArrayBuilder();
-        b.realStore = new byte[this.realStore.length];
-        System.arraycopy(realStore, 0, b.realStore, 0, realStore.length);
-        return b;
+    public ByteArrayBuilder clone() {
+        return snapshot();
+    }
+
+    /**
+     * Takes a copy-on-write snapshot of the builder in constant time. The
+     * snapshot shares the builder's segments and piece table; whichever of
+     * the two is written first copies the piece table, and then only the
+     * segments it writes to. Appends never touch shared bytes. Like a
+     * {@link ByteArrayBuilder#clone()}, the snapshot and the original are
+     * independent from then on.
+     *
+     * @return a new builder holding the current contents of this one
+     */
+    public ByteArrayBuilder snapshot() {
+        long stamp = lock.writeLock();
+        try {
+            reconcile();
+            ByteArrayBuilder b = new ByteArrayBuilder(pool);
+            b.segments = segments;
+            b.offsets = offsets;
+            b.lengths = lengths;
+            b.starts = starts;
+            b.owners = owners;
+            b.segmentCount = segmentCount;
+            b.size = size;
+            b.bigEndian = bigEndian;
+            b.growthPolicy = growthPolicy;
+            b.tableShared = true;
+            tableShared = true;
+            share();
+            return b;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Gives up in-place ownership of every current segment, so that a
+     * snapshot or view can keep referring to them. Both are O(1): the next
+     * write to a segment copies it, and arrays from the pool are no longer
+     * handed back to it.
+     */
+    private void share() {
+        owner = new Object();
+        if (!pooled.isEmpty()) {
+            pooled = new ArrayList<>();
+        }
+    }
+
+    /**
+     * Makes the piece table private to this builder before it is changed.
+     */
+    private void unshareTable() {
+        if (tableShared) {
+            int capacity = segments.length;
+            segments = Arrays.copyOf(segments, capacity);
+            offsets = Arrays.copyOf(offsets, capacity);
+            lengths = Arrays.copyOf(lengths, capacity);
+            starts = Arrays.copyOf(starts, capacity);
+            owners = Arrays.copyOf(owners, capacity);
+            tableShared = false;
+        }
+    }
+
+    /**
+     * Makes a segment safe to write in place, copying it if it is not owned
+     * by this builder.
+     *
+     * @param seg The position of the segment in the table
+     */
+    private void ensureWritable(int seg) {
+        if (owners[seg] != owner) {
+            unshareTable();
+            int from = offsets[seg];
+            segments[seg] = Arrays.copyOfRange(segments[seg], from, from + lengths[seg]);
+            offsets[seg] = 0;
+            owners[seg] = owner;
+        }
     }
 
     /**
-     * Merges the items stored in the buffer with the items in the real store.
+     * Inserting a piece no longer than this next to a piece that is also no
+     * longer than this merges the two, so byte-by-byte edits do not fragment
+     * the piece table.
+     */
+    private static final int MERGE_LIMIT = 256;
+
+    /**
+     * Moves the finished appends of concurrent append mode into the segment
+     * table, in place; no bytes are copied. Called with the write lock held.
      */
     private void reconcile() {
+        ConcurrentAppendBuffer app = appender;
+        if (app != null && !app.isEmpty()) {
+            app.drainTo(this::addSegment);
+            appended();
+        }
+    }
+
+    /**
+     * Takes the read lock for a reader that walks the segments. If there are
+     * finished concurrent appends, they are moved in first under the write
+     * lock, which is then turned into the read lock without being let go.
+     *
+     * @return the stamp to unlock the read lock with
+     */
+    private long lockForReading() {
+        ConcurrentAppendBuffer app = appender;
+        if (app == null || app.isEmpty()) {
+            return lock.readLock();
+        }
+        long stamp = lock.writeLock();
+        try {
+            reconcile();
+        } catch (RuntimeException | Error e) {
+            lock.unlockWrite(stamp);
+            throw e;
+        }
+        return lock.tryConvertToReadLock(stamp);
+    }
+
+    /**
+     * Lets a reader that takes no lock, or only the read lock, see the
+     * finished concurrent appends. The write lock is only taken if there
+     * are any.
+     */
+    private void publish() {
+        ConcurrentAppendBuffer app = appender;
+        if (app != null && !app.isEmpty()) {
+            sync();
+        }
+    }
 
-        if (buffer == null || buffer.store.isEmpty()) {
+    /**
+     * Adds a segment to the end of the segment table.
+     *
+     * @param data The array holding the segment. The range is owned by the
+     * builder from here on.
+     * @param offset The offset of the segment in the array
+     * @param length The length of the segment
+     */
+    private void addSegment(byte[] data, int offset, int length) {
+        if (length == 0) {
             return;
         }
+        openSlot(segmentCount);
+        segments[segmentCount] = data;
+        offsets[segmentCount] = offset;
+        lengths[segmentCount] = length;
+        starts[segmentCount] = size;
+        owners[segmentCount] = owner;
+        segmentCount++;
+        size += length;
+    }
+
+    /**
+     * Makes room in the segment table for an entry at the given position,
+     * moving the entries from that position on up by one. The new entry is
+     * left for the caller to fill in.
+     *
+     * @param pos The position in the segment table
+     */
+    private void openSlot(int pos) {
+        if (segmentCount == segments.length) {
+            int capacity = segmentCount * 2;
+            segments = Arrays.copyOf(segments, capacity);
+            offsets = Arrays.copyOf(offsets, capacity);
+            lengths = Arrays.copyOf(lengths, capacity);
+            starts = Arrays.copyOf(starts, capacity);
+            owners = Arrays.copyOf(owners, capacity);
+            tableShared = false;
+        } else {
+            unshareTable();
+        }
+        int tail = segmentCount - pos;
+        if (tail > 0) {
+            System.arraycopy(segments, pos, segments, pos + 1, tail);
+            System.arraycopy(offsets, pos, offsets, pos + 1, tail);
+            System.arraycopy(lengths, pos, lengths, pos + 1, tail);
+            System.arraycopy(starts, pos, starts, pos + 1, tail);
+            System.arraycopy(owners, pos, owners, pos + 1, tail);
+        }
+    }
 
-        synchronized (buffer) {
+    /**
+     * Removes a run of entries from the segment table. The starts of the
+     * entries after it are not adjusted.
+     *
+     * @param from The position of the first entry to remove
+     * @param to The position after the last entry to remove
+     */
+    private void closeSlots(int from, int to) {
+        unshareTable();
+        int tail = segmentCount - to;
+        System.arraycopy(segments, to, segments, from, tail);
+        System.arraycopy(offsets, to, offsets, from, tail);
+        System.arraycopy(lengths, to, lengths, from, tail);
+        System.arraycopy(starts, to, starts, from, tail);
+        System.arraycopy(owners, to, owners, from, tail);
+        int count = segmentCount - (to - from);
+        Arrays.fill(segments, count, segmentCount, null);
+        Arrays.fill(owners, count, segmentCount, null);
+        segmentCount = count;
+    }
 
-            if (realStore == null || realStore.length == 0) {
-                realStore = new byte[buffer.size.get()];
-                buffer.size.set(0);
-                int ind = 0;
+    /**
+     * Adds a delta to the starts of the segments from a position on.
+     */
+    private void shiftStarts(int from, int delta) {
+        unshareTable();
+        for (int i = from; i < segmentCount; i++) {
+            starts[i] += delta;
+        }
+    }
 
-                for (byte[] elem : buffer.store) {
-                    System.arraycopy(elem, 0, realStore, ind, elem.length);
-                    ind += elem.length;
-                }
-            } else {
-                byte[] temp = new byte[realStore.length + buffer.size.get()];
-                buffer.size.set(0);
-                int ind = 0;
-                System.arraycopy(realStore, 0, temp, 0, realStore.length);
-                ind += realStore.length;
-
-                for (byte[] elem : buffer.store) {
-                    System.arraycopy(elem, 0, temp, ind, elem.length);
-                    ind += elem.length;
-                }
+    /**
+     * Makes sure that a segment begins at the given index, splitting the
+     * segment that spans it if need be. The split pieces share their array.
+     *
+     * @param index An index in the builder, from 0 to size inclusive
+     * @return the position in the segment table of the segment that begins at
+     * the index, or the segment count if the index is the size
+     */
+    private int splitAt(int index) {
+        if (index == size) {
+            return segmentCount;
+        }
+        int seg = segmentOf(index);
+        int cut = index - starts[seg];
+        if (cut == 0) {
+            return seg;
+        }
+        openSlot(seg + 1);
+        segmentCount++;
+        segments[seg + 1] = segments[seg];
+        offsets[seg + 1] = offsets[seg] + cut;
+        lengths[seg + 1] = lengths[seg] - cut;
+        starts[seg + 1] = index;
+        owners[seg + 1] = owners[seg];
+        lengths[seg] = cut;
+        return seg + 1;
+    }
+
+    /**
+     * Claims room for a write of <code>n</code> bytes at the end of the
+     * builder, in the tail array. A new tail is opened if the current one is
+     * no longer the end of the builder or has no room left. The builder grows
+     * by <code>n</code>; the caller must fill the room.
+     *
+     * @param n The number of bytes to claim
+     * @return the index in {@link ByteArrayBuilder#tail} to write at
+     */
+    private int claimTail(int n) {
+        if (tailRoom() < n) {
+            openTail(n);
+        }
+        unshareTable();
+        int pos = tailEnd;
+        tailEnd += n;
+        lengths[segmentCount - 1] += n;
+        size += n;
+        return pos;
+    }
+
+    /**
+     * @return the room left in the tail array, or 0 if the last segment does
+     * not end at the tail's write position
+     */
+    private int tailRoom() {
+        int last = segmentCount - 1;
+        if (tail == null || last < 0 || segments[last] != tail || offsets[last] + lengths[last] != tailEnd) {
+            return 0;
+        }
+        return tail.length - tailEnd;
+    }
+
+    /**
+     * Copies bytes onto the end of the builder through the tail arrays,
+     * filling the current tail before opening another.
+     */
+    private void appendCopy(byte[] src, int off, int len) {
+        while (len > 0) {
+            int room = tailRoom();
+            if (room == 0) {
+                openTail(len);
+                room = tail.length - tailEnd;
+            }
+            int n = Math.min(room, len);
+            int pos = claimTail(n);
+            System.arraycopy(src, off, tail, pos, n);
+            off += n;
+            len -= n;
+        }
+    }
+
+    /**
+     * Starts a new last segment in a tail array. The unused end of the
+     * current tail is taken up again when it is big enough, so a segment
+     * appended in between, such as an adopted array, does not strand it.
+     * Bytes past {@link ByteArrayBuilder#tailEnd} have never been part of any
+     * segment, so no snapshot or view can refer to them.
+     */
+    private void openTail(int minimum) {
+        int left = tail == null ? 0 : tail.length - tailEnd;
+        if (left == 0 || left < Math.min(minimum, MIN_TAIL_SIZE)) {
+            newTail(Math.max(minimum, growthPolicy.capacity(size, tail == null ? 0 : tail.length, minimum)));
+        }
+        openSlot(segmentCount);
+        segments[segmentCount] = tail;
+        offsets[segmentCount] = tailEnd;
+        lengths[segmentCount] = 0;
+        starts[segmentCount] = size;
+        owners[segmentCount] = owner;
+        segmentCount++;
+    }
+
+    /**
+     * Replaces the tail with a fresh array. The new array is not yet part of
+     * any segment.
+     */
+    private void newTail(int capacity) {
+        if (pool != null) {
+            tail = pool.acquire(capacity);
+            pooled.add(tail);
+        } else {
+            tail = new byte[capacity];
+        }
+        tailEnd = 0;
+    }
+
+    /**
+     * Hands the arrays taken from the pool back to it. Only called once
+     * nothing refers to them any more.
+     */
+    private void releasePooled() {
+        for (byte[] segment : pooled) {
+            pool.release(segment);
+        }
+        pooled.clear();
+    }
+
+    /**
+     * Empties the segment table. The checksum is left alone, as
+     * {@link ByteArrayBuilder#flatten()} puts the same bytes straight back.
+     */
+    private void resetSegments() {
+        tail = null;
+        if (tableShared) {
+            segments = new byte[8][];
+            offsets = new int[8];
+            lengths = new int[8];
+            starts = new int[8];
+            owners = new Object[8];
+            tableShared = false;
+        } else {
+            Arrays.fill(segments, 0, segmentCount, null);
+            Arrays.fill(owners, 0, segmentCount, null);
+        }
+        segmentCount = 0;
+        size = 0;
+        lastSegment = 0;
+    }
 
-                this.realStore = temp;
+    /**
+     * Finds the segment holding the byte at the given index. The index must
+     * already have been bounds-checked against {@link ByteArrayBuilder#size}.
+     *
+     * @param index An index in the builder
+     * @return the position of the segment in the segment table
+     */
+    private int segmentOf(int index) {
+        int seg = lastSegment;
+        if (seg < segmentCount && index >= starts[seg] && index - starts[seg] < lengths[seg]) {
+            return seg;
+        }
+        int lo = 0;
+        int hi = segmentCount - 1;
+        while (lo < hi) {
+            int mid = (lo + hi + 1) >>> 1;
+            if (starts[mid] <= index) {
+                lo = mid;
+            } else {
+                hi = mid - 1;
             }
+        }
+        lastSegment = lo;
+        return lo;
+    }
+
+    /**
+     * Copies bytes out of the segments.
+     *
+     * @param index The index in the builder to start copying from
+     * @param dst The destination array
+     * @param off The offset in the destination array
+     * @param len The number of bytes to copy
+     */
+    private void read(int index, byte[] dst, int off, int len) {
+        if (len <= 0) {
+            return;
+        }
+        int seg = segmentOf(index);
+        while (len > 0) {
+            int from = index - starts[seg];
+            int n = Math.min(len, lengths[seg] - from);
+            System.arraycopy(segments[seg], offsets[seg] + from, dst, off, n);
+            index += n;
+            off += n;
+            len -= n;
+            seg++;
+        }
+    }
+
+    /**
+     * Copies bytes into the segments, overwriting what is there.
+     *
+     * @param index The index in the builder to start writing at
+     * @param src The source array
+     * @param off The offset in the source array
+     * @param len The number of bytes to write
+     */
+    private void write(int index, byte[] src, int off, int len) {
+        if (len <= 0) {
+            return;
+        }
+        int seg = segmentOf(index);
+        while (len > 0) {
+            ensureWritable(seg);
+            int from = index - starts[seg];
+            int n = Math.min(len, lengths[seg] - from);
+            System.arraycopy(src, off, segments[seg], offsets[seg] + from, n);
+            index += n;
+            off += n;
+            len -= n;
+            seg++;
+        }
+    }
 
-            buffer.reset();
+    /**
+     * Merges all segments into one contiguous array, which then becomes the
+     * only segment.
+     *
+     * @return the contents of the builder as one array
+     */
+    private byte[] flatten() {
+        if (segmentCount == 0) {
+            return EMPTY;
+        }
+        if (segmentCount == 1 && offsets[0] == 0 && lengths[0] == segments[0].length && owners[0] == owner) {
+            byte[] flat = segments[0];
+            //The caller gets this array, so it must never go back to the pool.
+            pooled.removeIf(segment -> segment == flat);
+            return flat;
         }
+        byte[] flat = new byte[size];
+        for (int i = 0; i < segmentCount; i++) {
+            System.arraycopy(segments[i], offsets[i], flat, starts[i], lengths[i]);
+        }
+        resetSegments();
+        releasePooled();
+        addSegment(flat, 0, flat.length);
+        return flat;
     }
 
     /**
-     * Always slower than {@link ByteArrayBuilder#append(byte[])}. Use in a loop
-     * only when you can't use {@link ByteArrayBuilder#append(byte[])} to
-     * accomplish your logic
+     * Costs about as much as an {@link ByteArrayBuilder#append(byte[])}: the
+     * data becomes a new piece at the front; nothing is moved to make room.
      *
      * @param data The data to prepend
      * @return the original object with the fresh data prepended to it.
@@ -151,45 +810,84 @@ public class ByteArrayBuilder implements Cloneable {
     }
 
     /**
+     *
+     * The bytes are little-endian. Use {@link ByteArrayBuilder#putLong(long)}
+     * for a configurable byte order without the temporary array.
      *
      * @param number Converts the long value to a byte array and appends it
      * @return the original object with the long's bytes appended to it.
      */
-    public synchronized ByteArrayBuilder append(long number) {
-        return append(toBytes(number), false);
+    public ByteArrayBuilder append(long number) {
+        return appendValue(8, number, false);
     }
 
     /**
+     *
+     * The bytes are big-endian. Use {@link ByteArrayBuilder#putInt(int)} for
+     * a configurable byte order without the temporary array.
      *
      * @param number Converts the int value to a byte array and appends it
      * @return the original object with the int's bytes appended to it.
      */
-    public synchronized ByteArrayBuilder append(int number) {
-        return append(toBytes(number), false);
+    public ByteArrayBuilder append(int number) {
+        return appendValue(4, number, true);
     }
 
     /**
+     *
+     * The value is widened and written as the four big-endian bytes of
+     * {@link ByteArrayBuilder#append(int)}. Use
+     * {@link ByteArrayBuilder#putShort(short)} to write two bytes.
      *
      * @param number Converts the short value to a byte array and appends it
      * @return the original object with the short's bytes appended to it.
      */
-    public synchronized ByteArrayBuilder append(short number) {
-        return append(toBytes(number), false);
+    public ByteArrayBuilder append(short number) {
+        return appendValue(4, number, true);
     }
 
-    public synchronized ByteArrayBuilder append(byte data) {
-        return append(new byte[]{data}, false);
+    public ByteArrayBuilder append(byte data) {
+        ConcurrentAppendBuffer app = appender;
+        if (app != null) {
+            app.append(data);
+            return this;
+        }
+        long stamp = lock.writeLock();
+        try {
+            int pos = claimTail(1);
+            tail[pos] = data;
+            appended();
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+        return this;
     }
 
     /**
      * Appends the byte array to this builder at very high speed. When done with
      * calls to this method, always call {@link ByteArrayBuilder#sync()} to
+     * <p>
+     * The bytes are copied into the builder's tail arrays, which are shared by
+     * consecutive appends, so a small append does not cost an array of its
+     * own.
      *
      * @param data A byte array to append to the {@link ByteArrayBuilder}
      * @return the instance of this builder object to facilitate chaining calls
      */
-    public synchronized ByteArrayBuilder append(byte[] data) {
-        return append(data.clone(), false);
+    public ByteArrayBuilder append(byte[] data) {
+        ConcurrentAppendBuffer app = appender;
+        if (app != null) {
+            app.append(data, 0, data.length);
+            return this;
+        }
+        long stamp = lock.writeLock();
+        try {
+            appendCopy(data, 0, data.length);
+            appended();
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+        return this;
     }
 
     /**
@@ -203,7 +901,7 @@ public class ByteArrayBuilder implements Cloneable {
      * @param toIndex The final index to copy
      * @return the instance of this builder object to facilitate chaining calls
      */
-    public synchronized ByteArrayBuilder append(byte[] data, int fromIndex, int toIndex) {
+    public ByteArrayBuilder append(byte[] data, int fromIndex, int toIndex) {
         if (fromIndex < 0) {
             throw new IllegalArgumentException("fromIndex must be >= 0");
         }
@@ -220,82 +918,665 @@ public class ByteArrayBuilder implements Cloneable {
             throw new IllegalArgumentException("toIndex must be < " + data.length);
         }
 
-        byte[] bits = new byte[toIndex - fromIndex + 1];
-        System.arraycopy(data, fromIndex, bits, 0, bits.length);
-        return append(bits, false);
+        ConcurrentAppendBuffer app = appender;
+        if (app != null) {
+            app.append(data, fromIndex, toIndex - fromIndex + 1);
+            return this;
+        }
+
+        long stamp = lock.writeLock();
+        try {
+            appendCopy(data, fromIndex, toIndex - fromIndex + 1);
+            appended();
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+        return this;
     }
 
     /**
+     * The array is not copied; it becomes part of the builder, so it must not
+     * be modified after the call.
+     *
      * @param data A byte array to append to the {@link ByteArrayBuilder}
-     * @param last If true, this is the last item in a sequence of appends. When
-     * last is true, the call reconciles all prior append operations and creates
-     * the builder structure.
+     * @param last If true, this is the last item in a sequence of appends. The
+     * array is added to the segment table at once either way, so readers see
+     * it as soon as the call returns; in concurrent append mode, a true value
+     * also publishes the appends of other threads, as
+     * {@link ByteArrayBuilder#sync()} does.
      * @return the instance of this builder object to facilitate chaining calls
      */
-    public synchronized ByteArrayBuilder append(byte[] data, boolean last) {
+    public ByteArrayBuilder append(byte[] data, boolean last) {
 
-        buffer.store.add(data);
-        buffer.size.addAndGet(data.length);
+        ConcurrentAppendBuffer app = appender;
+        if (app != null) {
+            app.append(data, 0, data.length);
+            if (last) {
+                sync();
+            }
+            return this;
+        }
 
-        if (last) {
-            reconcile();
+        long stamp = lock.writeLock();
+        try {
+            addSegment(data, 0, data.length);
+            appended();
+        } finally {
+            lock.unlockWrite(stamp);
         }
 
         return this;
     }
 
     /**
-     * Insert may or may not be as fast as an append depending on the index of
-     * insertion Example //index of insertion = 2; //[3,1,6,5,7,8,4]//original
-     * //[0,1,2,3,4,5,6]
-     * <p>
-     * //[9,2]-->data
-     * <p>
-     * //[3,1,9,2,6,5,7,8,4]
+     * Sets the byte order used by the put methods. The default, as for
+     * {@link java.nio.ByteBuffer}, is {@link ByteOrder#BIG_ENDIAN}. The put
+     * methods write straight into the tail of the builder, so nothing is
+     * allocated per value.
      *
-     * Inserts a byte array at the given index of the {@link ByteArrayBuilder}
+     * @param order The new byte order
+     * @return the instance of this builder object to facilitate chaining calls
+     */
+    public ByteArrayBuilder order(ByteOrder order) {
+        this.bigEndian = order == ByteOrder.BIG_ENDIAN;
+        return this;
+    }
+
+    /**
      *
-     * @param index The index in the byte array at which to insert the byte
-     * array supplied
-     * @param data A byte array to insert at the given index in the
-     * {@link ByteArrayBuilder}
-     * @return
+     * @return the byte order used by the put methods
      */
-    public synchronized ByteArrayBuilder insert(int index, byte[] data) {
+    public ByteOrder order() {
+        return bigEndian ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN;
+    }
 
-        if (index < 0) {
-            throw new ArrayIndexOutOfBoundsException("Input Index: " + index + " > " + realStore.length);
+    /**
+     * Sets how big the tail arrays that small appends are copied into are
+     * made. The default is {@link GrowthPolicy#PROPORTIONAL}.
+     *
+     * @param policy The new growth policy
+     * @return the instance of this builder object to facilitate chaining calls
+     */
+    public ByteArrayBuilder growthPolicy(GrowthPolicy policy) {
+        if (policy == null) {
+            throw new NullPointerException("policy");
         }
+        this.growthPolicy = policy;
+        return this;
+    }
+
+    public GrowthPolicy growthPolicy() {
+        return growthPolicy;
+    }
+
+    /**
+     *
+     * @param value The short whose two bytes are appended in the builder's
+     * byte order
+     * @return the instance of this builder object to facilitate chaining calls
+     */
+    public ByteArrayBuilder putShort(short value) {
+        return appendValue(2, value, bigEndian);
+    }
+
+    /**
+     * Writes the UTF-16 code unit, as {@link java.nio.ByteBuffer#putChar(char)}
+     * does.
+     *
+     * @param value The value to append
+     * @return the instance of this builder object to facilitate chaining calls
+     */
+    public ByteArrayBuilder putChar(char value) {
+        return appendValue(2, value, bigEndian);
+    }
+
+    /**
+     *
+     * @param value The int whose four bytes are appended in the builder's
+     * byte order
+     * @return the instance of this builder object to facilitate chaining calls
+     */
+    public ByteArrayBuilder putInt(int value) {
+        return appendValue(4, value, bigEndian);
+    }
+
+    /**
+     *
+     * @param value The long whose eight bytes are appended in the builder's
+     * byte order
+     * @return the instance of this builder object to facilitate chaining calls
+     */
+    public ByteArrayBuilder putLong(long value) {
+        return appendValue(8, value, bigEndian);
+    }
+
+    /**
+     * Writes the IEEE 754 bits of the float in the builder's byte order.
+     *
+     * @param value The value to append
+     * @return the instance of this builder object to facilitate chaining calls
+     */
+    public ByteArrayBuilder putFloat(float value) {
+        return putInt(Float.floatToRawIntBits(value));
+    }
+
+    /**
+     * Writes the IEEE 754 bits of the double in the builder's byte order.
+     *
+     * @param value The value to append
+     * @return the instance of this builder object to facilitate chaining calls
+     */
+    public ByteArrayBuilder putDouble(double value) {
+        return putLong(Double.doubleToRawLongBits(value));
+    }
 
-        if (index == 0 && realStore.length == 0 || index == realStore.length) {
-            append(data.clone());
+    /**
+     * Appends the low <code>width</code> bytes of the value: into the tail
+     * under the lock, or, in concurrent append mode, through a per-thread
+     * scratch array.
+     *
+     * @param width 2, 4 or 8
+     */
+    private ByteArrayBuilder appendValue(int width, long value, boolean bigEndian) {
+        ConcurrentAppendBuffer app = appender;
+        if (app != null) {
+            byte[] scratch = SCRATCH.get();
+            writeValue(scratch, 0, width, value, bigEndian);
+            app.append(scratch, 0, width);
             return this;
         }
+        long stamp = lock.writeLock();
+        try {
+            int pos = claimTail(width);
+            writeValue(tail, pos, width, value, bigEndian);
+            appended();
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+        return this;
+    }
 
-        if (index > realStore.length) {
-            throw new ArrayIndexOutOfBoundsException("Input Index: " + index + " > " + realStore.length);
+    private static void writeValue(byte[] dst, int pos, int width, long value, boolean bigEndian) {
+        switch (width) {
+            case 2:
+                (bigEndian ? SHORT_BE : SHORT_LE).set(dst, pos, (short) value);
+                break;
+            case 4:
+                (bigEndian ? INT_BE : INT_LE).set(dst, pos, (int) value);
+                break;
+            default:
+                (bigEndian ? LONG_BE : LONG_LE).set(dst, pos, value);
         }
+    }
 
-        reconcile();
+    /**
+     * Writes the int as an unsigned LEB128 varint, as protocol buffers do:
+     * seven bits per byte, low groups first, with the high bit set on every
+     * byte but the last. Small values take fewer bytes; a negative value
+     * takes 5. The byte order setting does not apply.
+     *
+     * @param value The value to append
+     * @return the instance of this builder object to facilitate chaining calls
+     * @see ByteArrayReader#getVarInt()
+     */
+    public ByteArrayBuilder appendVarInt(int value) {
+        return appendVarint(value & 0xFFFFFFFFL);
+    }
 
-        byte[] temp = new byte[realStore.length + data.length];
+    /**
+     * Writes the long as an unsigned LEB128 varint of 1 to 10 bytes.
+     *
+     * @param value The value to append
+     * @return the instance of this builder object to facilitate chaining calls
+     * @see ByteArrayBuilder#appendVarInt(int)
+     * @see ByteArrayReader#getVarLong()
+     */
+    public ByteArrayBuilder appendVarLong(long value) {
+        return appendVarint(value);
+    }
 
-        synchronized (realStore) {
+    /**
+     * Writes the int ZigZag encoded, as a varint: 0, -1, 1, -2... become 0,
+     * 1, 2, 3..., so values near zero take few bytes whatever their sign.
+     *
+     * @param value The value to append
+     * @return the instance of this builder object to facilitate chaining calls
+     * @see ByteArrayReader#getZigZagVarInt()
+     */
+    public ByteArrayBuilder appendZigZagVarInt(int value) {
+        return appendVarint(((value << 1) ^ (value >> 31)) & 0xFFFFFFFFL);
+    }
 
-            int ind = 0;
-            System.arraycopy(realStore, 0, temp, ind, index);
-            ind += index;
+    /**
+     * Writes the long ZigZag encoded, as a varint.
+     *
+     * @param value The value to append
+     * @return the instance of this builder object to facilitate chaining calls
+     * @see ByteArrayBuilder#appendZigZagVarInt(int)
+     * @see ByteArrayReader#getZigZagVarLong()
+     */
+    public ByteArrayBuilder appendZigZagVarLong(long value) {
+        return appendVarint((value << 1) ^ (value >> 63));
+    }
 
-            System.arraycopy(data, 0, temp, ind, data.length);
-            ind += data.length;
+    /**
+     * Writes the length of the array as a varint, then the array.
+     *
+     * @param data The bytes to append
+     * @return the instance of this builder object to facilitate chaining calls
+     * @see ByteArrayReader#getPrefixedBytes()
+     */
+    public ByteArrayBuilder appendPrefixedBytes(byte[] data) {
+        return appendPrefixedBytes(data, 0, data.length);
+    }
 
-            System.arraycopy(realStore, index, temp, ind, realStore.length - index);
+    /**
+     * Writes <code>len</code> as a varint, then the bytes.
+     *
+     * @param data The array holding the bytes to append
+     * @param offset The offset of the bytes in the array
+     * @param len The number of bytes to append
+     * @return the instance of this builder object to facilitate chaining calls
+     */
+    public ByteArrayBuilder appendPrefixedBytes(byte[] data, int offset, int len) {
+        DataChunker.checkBounds(offset, len, data.length);
+        int prefix = varintSize(len);
+        ConcurrentAppendBuffer app = appender;
+        if (app != null) {
+            // One append, so that other threads cannot come between the
+            // length and the bytes.
+            byte[] frame = new byte[prefix + len];
+            writeVarint(frame, 0, len, prefix);
+            System.arraycopy(data, offset, frame, prefix, len);
+            app.append(frame, 0, frame.length);
+            return this;
+        }
+        long stamp = lock.writeLock();
+        try {
+            int pos = claimTail(prefix);
+            writeVarint(tail, pos, len, prefix);
+            appendCopy(data, offset, len);
+            appended();
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+        return this;
+    }
+
+    /**
+     * Writes the length in bytes of the UTF-8 form of the text as a varint,
+     * then the UTF-8 bytes. The text is encoded straight into the tail of the
+     * builder; no byte array is made for it. An unpaired surrogate is written
+     * as '?', as {@link String#getBytes(java.nio.charset.Charset)} does.
+     *
+     * @param text The text to append
+     * @return the instance of this builder object to facilitate chaining calls
+     * @see ByteArrayReader#getPrefixedUtf8()
+     */
+    public ByteArrayBuilder appendPrefixedUtf8(CharSequence text) {
+        ConcurrentAppendBuffer app = appender;
+        if (app != null) {
+            byte[] utf8 = text.toString().getBytes(StandardCharsets.UTF_8);
+            return appendPrefixedBytes(utf8, 0, utf8.length);
+        }
+        int len = utf8Length(text);
+        int prefix = varintSize(len);
+        long stamp = lock.writeLock();
+        try {
+            int pos = claimTail(prefix);
+            writeVarint(tail, pos, len, prefix);
+            encodeUtf8(text);
+            appended();
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+        return this;
+    }
+
+    /**
+     * Encodes the text as UTF-8 straight into the tail of the builder; no
+     * byte array is made for it. Runs of ASCII are copied a char to a byte
+     * in a tight loop. An unpaired surrogate is written as '?', as
+     * {@link String#getBytes(Charset)} does.
+     *
+     * @param text The text to append
+     * @return the instance of this builder object to facilitate chaining calls
+     */
+    public ByteArrayBuilder appendUtf8(CharSequence text) {
+        ConcurrentAppendBuffer app = appender;
+        if (app != null) {
+            byte[] utf8 = text.toString().getBytes(StandardCharsets.UTF_8);
+            app.append(utf8, 0, utf8.length);
+            return this;
+        }
+        long stamp = lock.writeLock();
+        try {
+            encodeUtf8(text);
+            appended();
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+        return this;
+    }
+
+    /**
+     * Writes each char of the text as one byte, straight into the tail of the
+     * builder. A char outside ASCII, or a surrogate pair, is written as '?',
+     * as {@link String#getBytes(Charset)} does.
+     *
+     * @param text The text to append
+     * @return the instance of this builder object to facilitate chaining calls
+     */
+    public ByteArrayBuilder appendAscii(CharSequence text) {
+        ConcurrentAppendBuffer app = appender;
+        if (app != null) {
+            byte[] ascii = text.toString().getBytes(StandardCharsets.US_ASCII);
+            app.append(ascii, 0, ascii.length);
+            return this;
+        }
+        long stamp = lock.writeLock();
+        try {
+            int n = text.length();
+            int i = 0;
+            while (i < n) {
+                if (tailRoom() == 0) {
+                    openTail(Math.min(n - i, MAX_TAIL_SIZE));
+                }
+                byte[] dst = tail;
+                int start = tailEnd;
+                int p = start;
+                int stop = Math.min(n, i + dst.length - p);
+                while (i < stop) {
+                    char c = text.charAt(i++);
+                    if (c < 0x80) {
+                        dst[p++] = (byte) c;
+                    } else {
+                        dst[p++] = '?';
+                        if (Character.isHighSurrogate(c) && i < n && Character.isLowSurrogate(text.charAt(i))) {
+                            i++;
+                        }
+                    }
+                }
+                claimTail(p - start);
+            }
+            appended();
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+        return this;
+    }
+
+    /**
+     * Encodes the text in the given charset straight into the tail of the
+     * builder. UTF-8 and US-ASCII take the paths of
+     * {@link ByteArrayBuilder#appendUtf8(CharSequence)} and
+     * {@link ByteArrayBuilder#appendAscii(CharSequence)}; other charsets go
+     * through a {@link CharsetEncoder} that the builder keeps and reuses
+     * while the charset stays the same. Text that cannot be encoded is
+     * replaced, as {@link String#getBytes(Charset)} does.
+     *
+     * @param text The text to append
+     * @param charset The charset to encode the text in
+     * @return the instance of this builder object to facilitate chaining calls
+     */
+    public ByteArrayBuilder append(CharSequence text, Charset charset) {
+        if (charset.equals(StandardCharsets.UTF_8)) {
+            return appendUtf8(text);
+        }
+        if (charset.equals(StandardCharsets.US_ASCII)) {
+            return appendAscii(text);
+        }
+        ConcurrentAppendBuffer app = appender;
+        if (app != null) {
+            byte[] encoded = text.toString().getBytes(charset);
+            app.append(encoded, 0, encoded.length);
+            return this;
+        }
+        long stamp = lock.writeLock();
+        try {
+            encode(text, charset);
+            appended();
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+        return this;
+    }
 
-            this.realStore = temp;
+    /**
+     * Lets the encoder write into the tail, opening a new tail whenever the
+     * current one overflows, and then flushes it the same way.
+     */
+    private void encode(CharSequence text, Charset charset) {
+        CharsetEncoder enc = encoder;
+        if (enc == null || !enc.charset().equals(charset)) {
+            enc = charset.newEncoder()
+                    .onMalformedInput(CodingErrorAction.REPLACE)
+                    .onUnmappableCharacter(CodingErrorAction.REPLACE);
+            encoder = enc;
+        }
+        enc.reset();
+        CharBuffer in = CharBuffer.wrap(text);
+        //Enough room for any one char, so that an overflow always makes progress.
+        int margin = Math.max(16, (int) Math.ceil(enc.maxBytesPerChar()));
+        boolean flushing = false;
+        while (true) {
+            if (tailRoom() < margin) {
+                long estimate = (long) Math.ceil(in.remaining() * (double) enc.averageBytesPerChar());
+                openTail((int) Math.max(margin, Math.min(estimate, MAX_TAIL_SIZE)));
+            }
+            ByteBuffer out = ByteBuffer.wrap(tail, tailEnd, tailRoom());
+            CoderResult result = flushing ? enc.flush(out) : enc.encode(in, out, true);
+            claimTail(out.position() - tailEnd);
+            if (result.isUnderflow()) {
+                if (flushing) {
+                    return;
+                }
+                flushing = true;
+            } else if (!result.isOverflow()) {
+                //Not reached: errors are replaced.
+                throw new IllegalStateException(result.toString());
+            }
+        }
+    }
 
+    private ByteArrayBuilder appendVarint(long value) {
+        int n = varintSize(value);
+        ConcurrentAppendBuffer app = appender;
+        if (app != null) {
+            byte[] scratch = SCRATCH.get();
+            writeVarint(scratch, 0, value, n);
+            app.append(scratch, 0, n);
             return this;
+        }
+        long stamp = lock.writeLock();
+        try {
+            int pos = claimTail(n);
+            writeVarint(tail, pos, value, n);
+            appended();
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+        return this;
+    }
+
+    /**
+     * @return the number of bytes of the unsigned varint form of the value,
+     * without a loop: one byte per started group of seven significant bits
+     */
+    private static int varintSize(long value) {
+        return (70 - Long.numberOfLeadingZeros(value | 1)) / 7;
+    }
 
+    /**
+     * Writes the <code>n</code> byte varint form of the value. The size is
+     * known up front, so the loop has no exit test of its own.
+     */
+    private static void writeVarint(byte[] dst, int pos, long value, int n) {
+        for (int last = pos + n - 1; pos < last; pos++) {
+            dst[pos] = (byte) (value | 0x80);
+            value >>>= 7;
+        }
+        dst[pos] = (byte) value;
+    }
+
+    /**
+     * @return the number of bytes of the UTF-8 form of the text, with an
+     * unpaired surrogate counted as the one byte of '?'
+     */
+    private static int utf8Length(CharSequence text) {
+        int n = text.length();
+        long len = n;
+        for (int i = 0; i < n; i++) {
+            char c = text.charAt(i);
+            if (c >= 0x80) {
+                if (c < 0x800) {
+                    len++;
+                } else if (!Character.isSurrogate(c)) {
+                    len += 2;
+                } else if (Character.isHighSurrogate(c) && i + 1 < n && Character.isLowSurrogate(text.charAt(i + 1))) {
+                    // Four bytes for the pair of chars.
+                    len += 2;
+                    i++;
+                }
+            }
         }
+        if (len > Integer.MAX_VALUE) {
+            throw new OutOfMemoryError("UTF-8 form of the text is too long: " + len + " bytes");
+        }
+        return (int) len;
+    }
+
+    /**
+     * Encodes the text as UTF-8 onto the end of the builder. Each pass fills
+     * the room left in the tail, with a margin of the 4 bytes of the longest
+     * sequence, and then claims what it wrote.
+     */
+    private void encodeUtf8(CharSequence text) {
+        int n = text.length();
+        int i = 0;
+        while (i < n) {
+            if (tailRoom() < 4) {
+                openTail(Math.min(Math.max(n - i, 4), MAX_TAIL_SIZE));
+            }
+            byte[] dst = tail;
+            int start = tailEnd;
+            int p = start;
+            int limit = dst.length - 4;
+            while (i < n && p <= limit) {
+                char c = text.charAt(i++);
+                if (c < 0x80) {
+                    // A run of ASCII is one byte per char, so it may fill the
+                    // tail to the end; the loop tests nothing else.
+                    dst[p++] = (byte) c;
+                    int stop = Math.min(n, i + dst.length - p);
+                    while (i < stop && (c = text.charAt(i)) < 0x80) {
+                        dst[p++] = (byte) c;
+                        i++;
+                    }
+                } else if (c < 0x800) {
+                    dst[p++] = (byte) (0xC0 | (c >> 6));
+                    dst[p++] = (byte) (0x80 | (c & 0x3F));
+                } else if (!Character.isSurrogate(c)) {
+                    dst[p++] = (byte) (0xE0 | (c >> 12));
+                    dst[p++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                    dst[p++] = (byte) (0x80 | (c & 0x3F));
+                } else if (Character.isHighSurrogate(c) && i < n && Character.isLowSurrogate(text.charAt(i))) {
+                    int cp = Character.toCodePoint(c, text.charAt(i++));
+                    dst[p++] = (byte) (0xF0 | (cp >> 18));
+                    dst[p++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+                    dst[p++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+                    dst[p++] = (byte) (0x80 | (cp & 0x3F));
+                } else {
+                    dst[p++] = '?';
+                }
+            }
+            claimTail(p - start);
+        }
+    }
+
+    /**
+     * Only the piece of the builder that spans the index is split, so the cost
+     * is proportional to the size of the data inserted, not to the size of
+     * the builder. Example //index of insertion = 2; //[3,1,6,5,7,8,4]//original
+     * //[0,1,2,3,4,5,6]
+     * <p>
+     * //[9,2]-->data
+     * <p>
+     * //[3,1,9,2,6,5,7,8,4]
+     *
+     * Inserts a byte array at the given index of the {@link ByteArrayBuilder}
+     *
+     * @param index The index in the byte array at which to insert the byte
+     * array supplied
+     * @param data A byte array to insert at the given index in the
+     * {@link ByteArrayBuilder}
+     * @return
+     */
+    public ByteArrayBuilder insert(int index, byte[] data) {
+
+        long stamp = lock.writeLock();
+        try {
+            reconcile();
+
+            if (index < 0) {
+                throw new ArrayIndexOutOfBoundsException("Input Index: " + index + " > " + size);
+            }
+
+            if (index == size) {
+                ConcurrentAppendBuffer app = appender;
+                if (app != null) {
+                    app.append(data, 0, data.length);
+                } else {
+                    appendCopy(data, 0, data.length);
+                    appended();
+                }
+                return this;
+            }
+
+            if (index > size) {
+                throw new ArrayIndexOutOfBoundsException("Input Index: " + index + " > " + size);
+            }
+
+            if (data.length == 0) {
+                return this;
+            }
+
+            invalidateChecksum(index);
+            insertPiece(index, data);
+            trackLength();
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+        return this;
+    }
+
+    private void insertPiece(int index, byte[] data) {
+        int len = data.length;
+        //Only the piece spanning the index is split; the data around it stays where it is.
+        int pos = splitAt(index);
+
+        if (pos > 0 && len <= MERGE_LIMIT && lengths[pos - 1] <= MERGE_LIMIT) {
+            int left = pos - 1;
+            byte[] merged = new byte[lengths[left] + len];
+            System.arraycopy(segments[left], offsets[left], merged, 0, lengths[left]);
+            System.arraycopy(data, 0, merged, lengths[left], len);
+            unshareTable();
+            segments[left] = merged;
+            offsets[left] = 0;
+            lengths[left] = merged.length;
+            owners[left] = owner;
+        } else {
+            openSlot(pos);
+            segmentCount++;
+            segments[pos] = data.clone();
+            offsets[pos] = 0;
+            lengths[pos] = len;
+            starts[pos] = index;
+            owners[pos] = owner;
+            pos++;
+        }
+        shiftStarts(pos, len);
+        size += len;
 
     }
 
@@ -305,20 +1586,68 @@ public class ByteArrayBuilder implements Cloneable {
      * @return the byte at that index
      */
     public byte get(int index) {
-        reconcile();
+        publish();
+
+        long stamp = lock.tryOptimisticRead();
+        int n = size;
+        byte value = index >= 0 && index < n ? peek(index) : 0;
+        if (!lock.validate(stamp)) {
+            stamp = lock.readLock();
+            try {
+                n = size;
+                if (index >= 0 && index < n) {
+                    value = byteAt(index);
+                }
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
 
-        if (realStore.length == 0) {
+        if (n == 0) {
             throw new ArrayIndexOutOfBoundsException("Cannot access index (" + index + ") in empty builder");
         }
         if (index < 0) {
             throw new ArrayIndexOutOfBoundsException("Input Index cannot be negative.");
         }
-        if (index >= realStore.length) {
-            throw new ArrayIndexOutOfBoundsException("Input Index (" + index + ") >= Builder Size(" + realStore.length + ")");
+        if (index >= n) {
+            throw new ArrayIndexOutOfBoundsException("Input Index (" + index + ") >= Builder Size(" + n + ")");
         }
+        return value;
 
-        return realStore[index];
+    }
 
+    /**
+     * Reads one byte with no lock held, for an optimistic read. A writer may
+     * be changing the segment table meanwhile, so every index is checked; a
+     * torn read yields a wrong byte rather than an exception, and the caller
+     * discards it when its stamp fails to validate.
+     */
+    private byte peek(int index) {
+        byte[][] segs = segments;
+        int[] offs = offsets;
+        int[] st = starts;
+        int count = Math.min(segmentCount, Math.min(segs.length, Math.min(offs.length, st.length)));
+        if (count == 0) {
+            return 0;
+        }
+        int seg = lastSegment;
+        if (seg >= count || st[seg] > index || (seg + 1 < count && st[seg + 1] <= index)) {
+            int lo = 0;
+            int hi = count - 1;
+            while (lo < hi) {
+                int mid = (lo + hi + 1) >>> 1;
+                if (st[mid] <= index) {
+                    lo = mid;
+                } else {
+                    hi = mid - 1;
+                }
+            }
+            seg = lo;
+            lastSegment = seg;
+        }
+        byte[] data = segs[seg];
+        int pos = offs[seg] + index - st[seg];
+        return data != null && pos >= 0 && pos < data.length ? data[pos] : 0;
     }
 
     /**
@@ -326,48 +1655,62 @@ public class ByteArrayBuilder implements Cloneable {
      * @param index The index whose byte we wish to update
      * @param number The data to set at the specified index.
      */
-    public synchronized void set(int index, byte number) {
-        reconcile();
+    public void set(int index, byte number) {
+        long stamp = lock.writeLock();
+        try {
+            reconcile();
 
-        if (realStore.length == 0) {
-            throw new ArrayIndexOutOfBoundsException("Cannot access index (" + index + ") in empty builder. Append some data first!");
-        }
-        if (index < 0) {
-            throw new ArrayIndexOutOfBoundsException("Input Index cannot be negative.");
-        }
-        if (index >= realStore.length) {
-            throw new ArrayIndexOutOfBoundsException("Input Index (" + index + ") >= Builder Size(" + realStore.length + ")");
-        }
+            if (size == 0) {
+                throw new ArrayIndexOutOfBoundsException("Cannot access index (" + index + ") in empty builder. Append some data first!");
+            }
+            if (index < 0) {
+                throw new ArrayIndexOutOfBoundsException("Input Index cannot be negative.");
+            }
+            if (index >= size) {
+                throw new ArrayIndexOutOfBoundsException("Input Index (" + index + ") >= Builder Size(" + size + ")");
+            }
 
-        realStore[index] = number;
+            invalidateChecksum(index);
+            int seg = segmentOf(index);
+            ensureWritable(seg);
+            segments[seg][offsets[seg] + index - starts[seg]] = number;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
 
     }
 
     /**
      * Updates the data over a range of the {@link ByteArrayBuilder}
      *
-     * @param startIndex The index where we wish to set some data in
-     * {@link ByteArrayBuilder##realStore}
+     * @param startIndex The index where we wish to set some data in the
+     * builder
      * @param data The data to set at the specified index.
      * @return the byte at that index
      */
-    public synchronized ByteArrayBuilder set(int startIndex, byte[] data) {
-        reconcile();
+    public ByteArrayBuilder set(int startIndex, byte[] data) {
+        long stamp = lock.writeLock();
+        try {
+            reconcile();
 
-        if (realStore.length == 0) {
-            throw new ArrayIndexOutOfBoundsException("Cannot access index (" + startIndex + ") in empty builder. Append some data first!");
-        }
-        if (startIndex < 0) {
-            throw new ArrayIndexOutOfBoundsException("Input Index cannot be negative.");
-        }
-        if (startIndex >= realStore.length) {
-            throw new ArrayIndexOutOfBoundsException("Input Index (" + startIndex + ") >= Builder Size(" + realStore.length + ")");
-        }
-        if (startIndex + data.length > realStore.length) {
-            throw new ArrayIndexOutOfBoundsException("Input Index (" + startIndex + ") + Input Length >= Builder Size(" + realStore.length + ") Space not enough!");
-        }
+            if (size == 0) {
+                throw new ArrayIndexOutOfBoundsException("Cannot access index (" + startIndex + ") in empty builder. Append some data first!");
+            }
+            if (startIndex < 0) {
+                throw new ArrayIndexOutOfBoundsException("Input Index cannot be negative.");
+            }
+            if (startIndex >= size) {
+                throw new ArrayIndexOutOfBoundsException("Input Index (" + startIndex + ") >= Builder Size(" + size + ")");
+            }
+            if (startIndex + data.length > size) {
+                throw new ArrayIndexOutOfBoundsException("Input Index (" + startIndex + ") + Input Length >= Builder Size(" + size + ") Space not enough!");
+            }
 
-        System.arraycopy(data, 0, realStore, startIndex, data.length);
+            invalidateChecksum(startIndex);
+            write(startIndex, data, 0, data.length);
+        } finally {
+            lock.unlockWrite(stamp);
+        }
 
         //[4,9,1,2,6,3,7,0,8,5]
         //              [2,1,3,9]
@@ -377,34 +1720,53 @@ public class ByteArrayBuilder implements Cloneable {
     }
 
     public int length() {
-        reconcile();
-        return realStore.length;
+        publish();
+        long stamp = lock.tryOptimisticRead();
+        int n = size;
+        if (!lock.validate(stamp)) {
+            stamp = lock.readLock();
+            try {
+                n = size;
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+        return n;
     }
 
     /**
      *
-     * @param startIndex The index from which we wish to copy some data in
-     * {@link ByteArrayBuilder##realStore}
+     * @param startIndex The index from which we wish to copy some data in the
+     * builder
      * @param numberOfItems The number of items to copy
      */
-    public synchronized byte[] get(int startIndex, int numberOfItems) {
-        reconcile();
+    public byte[] get(int startIndex, int numberOfItems) {
+        publish();
+        long stamp = lock.readLock();
+        try {
+            return copyOut(startIndex, numberOfItems);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    private byte[] copyOut(int startIndex, int numberOfItems) {
 
-        if (realStore.length == 0) {
+        if (size == 0) {
             throw new ArrayIndexOutOfBoundsException("Cannot access index (" + startIndex + ") in empty builder. Append some data first!");
         }
         if (startIndex < 0) {
             throw new ArrayIndexOutOfBoundsException("Input Index cannot be negative.");
         }
-        if (startIndex >= realStore.length) {
-            throw new ArrayIndexOutOfBoundsException("Input Index (" + startIndex + ") >= Builder Size(" + realStore.length + ")");
+        if (startIndex >= size) {
+            throw new ArrayIndexOutOfBoundsException("Input Index (" + startIndex + ") >= Builder Size(" + size + ")");
         }
-        if (startIndex + numberOfItems > realStore.length) {
-            throw new ArrayIndexOutOfBoundsException("Input Index (" + startIndex + ") + Input Length >= Builder Size(" + realStore.length + ") Space not enough!");
+        if (startIndex + numberOfItems > size) {
+            throw new ArrayIndexOutOfBoundsException("Input Index (" + startIndex + ") + Input Length >= Builder Size(" + size + ") Space not enough!");
         }
 
         byte[] data = new byte[numberOfItems];
-        System.arraycopy(realStore, startIndex, data, 0, numberOfItems);
+        read(startIndex, data, 0, numberOfItems);
         //[4,9,1,2,6,3,7,0,8,5]
         //              [2,1,3,9]
         //[0,1,2,3,4,5,6,7,8,9]
@@ -419,69 +1781,800 @@ public class ByteArrayBuilder implements Cloneable {
      * @param numberOfItems The number of items to remove
      * @return the original {@link ByteArrayBuilder}, now modified
      */
-    public synchronized ByteArrayBuilder remove(int start, int numberOfItems) {
+    public ByteArrayBuilder remove(int start, int numberOfItems) {
+
+        long stamp = lock.writeLock();
+        try {
+            reconcile();
+            int end = start + numberOfItems - 1;
+
+            if (size == 0) {
+                throw new ArrayIndexOutOfBoundsException("Cannot access index (" + start + ") in empty builder. Append some data first!");
+            }
+            if (start < 0) {
+                throw new ArrayIndexOutOfBoundsException("Input Index cannot be negative.");
+            }
+            if (start >= size) {
+                throw new ArrayIndexOutOfBoundsException("Input Index (" + start + ") >= Builder Size(" + size + ")");
+            }
+            if (start >= end) {
+                throw new ArrayIndexOutOfBoundsException("Start Index (" + start + ") >= End Index(" + end + ") is just plain wrong");
+            }
+
+            if (end >= size) {
+                throw new ArrayIndexOutOfBoundsException("End Index (" + end + ") > Builder Size(" + size + ") is an out-of-bounds indexing error!");
+            }
+
+            //[4,5,2,3,1,8,6,9]
+            //[0,1,2,3,4,5,6,7] from 2 , 3 elems...end = start+num-1 = 2 + 3 - 1 = 4
+            //[4,5,8,6]
+            //Cut the pieces at both ends of the range and drop the ones in between.
+            invalidateChecksum(start);
+            int from = splitAt(start);
+            int to = splitAt(end + 1);
+            closeSlots(from, to);
+            shiftStarts(from, -numberOfItems);
+            size -= numberOfItems;
+            trackLength();
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+        return this;
+    }
+
+    /**
+     * Makes appends fold their bytes into the running checksum as they go,
+     * in batches of a few KB that are still in cache, so that
+     * {@link ByteArrayBuilder#checksum()} does not need a second pass over
+     * the data.
+     *
+     * @return the instance of this builder object to facilitate chaining calls
+     */
+    public ByteArrayBuilder trackChecksum() {
+        long stamp = lock.writeLock();
+        try {
+            if (crc == null) {
+                crc = new CRC32C();
+            }
+            eagerChecksum = true;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+        return this;
+    }
+
+    /**
+     * The CRC32C of the contents of the builder. The checksum is kept
+     * incrementally: only the bytes appended since the last call are read.
+     * An edit (set, insert, remove) before the end of the checksummed bytes,
+     * or a clear, means the next call starts again from the front. Merging
+     * the segments, as {@link ByteArrayBuilder#getBytes()} and
+     * {@link ByteArrayBuilder#trimToSize()} do, changes no byte and keeps
+     * the checksum.
+     *
+     * @return the CRC32C of the whole builder
+     */
+    public long checksum() {
+        long stamp = lock.writeLock();
+        try {
+            reconcile();
+            if (crc == null) {
+                crc = new CRC32C();
+            }
+            foldChecksum();
+            return crc.getValue();
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Called after every append.
+     */
+    private void appended() {
+        if (eagerChecksum && size - checksummed >= CHECKSUM_BATCH) {
+            foldChecksum();
+        }
+        trackLength();
+    }
+
+    /**
+     * Tells the appender of concurrent append mode the length of the
+     * builder, so that its appends keep the total within the int range.
+     */
+    private void trackLength() {
+        ConcurrentAppendBuffer app = appender;
+        if (app != null) {
+            app.setLength(size);
+        }
+    }
+
+    /**
+     * Brings the checksum up to date with the end of the builder.
+     */
+    private void foldChecksum() {
+        while (checksummed < size) {
+            int seg = segmentOf(checksummed);
+            int from = checksummed - starts[seg];
+            int n = lengths[seg] - from;
+            crc.update(segments[seg], offsets[seg] + from, n);
+            checksummed += n;
+        }
+    }
+
+    /**
+     * Called before an edit at the given index. If the checksum covers that
+     * index it is started over; CRC32C cannot be rewound.
+     */
+    private void invalidateChecksum(int index) {
+        if (index < checksummed) {
+            crc.reset();
+            checksummed = 0;
+        }
+    }
+
+    /**
+     * Builds the contiguous array on the first call after an append; the
+     * result is kept as the builder's only segment, so repeated calls are
+     * free until the next append.
+     *
+     * @return the builder data as a byte array
+     */
+    public byte[] getBytes() {
+        long stamp = lock.writeLock();
+        try {
+            reconcile();
+            return flatten();
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Reads one byte by index; for search paths that step across segments.
+     */
+    private byte byteAt(int index) {
+        int seg = segmentOf(index);
+        return segments[seg][offsets[seg] + index - starts[seg]];
+    }
+
+    /**
+     * Compares a pattern with the builder byte by byte, across segments.
+     */
+    private boolean matchesAt(int index, byte[] pattern) {
+        for (int i = 0; i < pattern.length; i++) {
+            if (byteAt(index + i) != pattern[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     *
+     * @param value The byte to search for
+     * @return the index of the first occurrence of the byte, or -1
+     */
+    public int indexOf(byte value) {
+        return indexOf(value, 0);
+    }
+
+    /**
+     * Searches each segment in place, eight bytes at a time; the builder is
+     * never flattened.
+     *
+     * @param value The byte to search for
+     * @param fromIndex The index to start searching from
+     * @return the index of the first occurrence of the byte at or after
+     * <code>fromIndex</code>, or -1
+     */
+    public int indexOf(byte value, int fromIndex) {
+        long stamp = lockForReading();
+        try {
+            return find(value, fromIndex);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    private int find(byte value, int fromIndex) {
+        if (fromIndex < 0) {
+            fromIndex = 0;
+        }
+        if (fromIndex >= size) {
+            return -1;
+        }
+        for (int seg = segmentOf(fromIndex); seg < segmentCount; seg++) {
+            int base = offsets[seg] - starts[seg];
+            int from = Math.max(fromIndex, starts[seg]) + base;
+            int found = ByteSearch.indexOf(segments[seg], from, offsets[seg] + lengths[seg], value);
+            if (found >= 0) {
+                return found - base;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     *
+     * @param value The byte to search for
+     * @return the index of the last occurrence of the byte, or -1
+     */
+    public int lastIndexOf(byte value) {
+        return lastIndexOf(value, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Searches each segment in place, eight bytes at a time, from the end
+     * backwards; the builder is never flattened.
+     *
+     * @param value The byte to search for
+     * @param fromIndex The index to start searching backwards from
+     * @return the index of the last occurrence of the byte at or before
+     * <code>fromIndex</code>, or -1
+     */
+    public int lastIndexOf(byte value, int fromIndex) {
+        long stamp = lockForReading();
+        try {
+            return findLast(value, fromIndex);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    private int findLast(byte value, int fromIndex) {
+        if (fromIndex >= size) {
+            fromIndex = size - 1;
+        }
+        if (fromIndex < 0) {
+            return -1;
+        }
+        for (int seg = segmentOf(fromIndex); seg >= 0; seg--) {
+            int base = offsets[seg] - starts[seg];
+            int to = Math.min(fromIndex + 1, starts[seg] + lengths[seg]) + base;
+            int found = ByteSearch.lastIndexOf(segments[seg], offsets[seg], to, value);
+            if (found >= 0) {
+                return found - base;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     *
+     * @param pattern The bytes to search for
+     * @return the index of the first occurrence of the pattern, or -1
+     */
+    public int indexOf(byte[] pattern) {
+        return indexOf(pattern, 0);
+    }
+
+    /**
+     * Uses a Boyer-Moore-Horspool search. While the window lies within one
+     * segment the segment's array is read directly; windows that span a
+     * segment boundary are compared across the segments. The builder is
+     * never flattened.
+     *
+     * @param pattern The bytes to search for
+     * @param fromIndex The index to start searching from
+     * @return the index of the first occurrence of the pattern at or after
+     * <code>fromIndex</code>, or -1
+     */
+    public int indexOf(byte[] pattern, int fromIndex) {
+        long stamp = lockForReading();
+        try {
+            return find(pattern, fromIndex);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    private int find(byte[] pattern, int fromIndex) {
+        int m = pattern.length;
+        if (fromIndex < 0) {
+            fromIndex = 0;
+        }
+        if (m == 0) {
+            return Math.min(fromIndex, size);
+        }
+        if (m == 1) {
+            return find(pattern[0], fromIndex);
+        }
+        int[] shift = ByteSearch.forwardShifts(pattern);
+        byte last = pattern[m - 1];
+        int pos = fromIndex;
+        while (pos <= size - m) {
+            int seg = segmentOf(pos + m - 1);
+            if (pos >= starts[seg]) {
+                byte[] data = segments[seg];
+                int base = offsets[seg] - starts[seg];
+                int limit = starts[seg] + lengths[seg] - m;
+                while (pos <= limit) {
+                    byte c = data[base + pos + m - 1];
+                    if (c == last && ByteSearch.regionMatches(data, base + pos, pattern, 0, m - 1)) {
+                        return pos;
+                    }
+                    pos += shift[c & 0xff];
+                }
+            } else {
+                byte c = byteAt(pos + m - 1);
+                if (c == last && matchesAt(pos, pattern)) {
+                    return pos;
+                }
+                pos += shift[c & 0xff];
+            }
+        }
+        return -1;
+    }
+
+    /**
+     *
+     * @param pattern The bytes to search for
+     * @return the index of the last occurrence of the pattern, or -1
+     */
+    public int lastIndexOf(byte[] pattern) {
+        return lastIndexOf(pattern, Integer.MAX_VALUE);
+    }
+
+    /**
+     * The backward counterpart of {@link ByteArrayBuilder#indexOf(byte[], int)}.
+     *
+     * @param pattern The bytes to search for
+     * @param fromIndex The greatest index at which a match may start
+     * @return the index of the last occurrence of the pattern that starts at
+     * or before <code>fromIndex</code>, or -1
+     */
+    public int lastIndexOf(byte[] pattern, int fromIndex) {
+        long stamp = lockForReading();
+        try {
+            return findLast(pattern, fromIndex);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
 
-        reconcile();
-        int end = start + numberOfItems - 1;
+    private int findLast(byte[] pattern, int fromIndex) {
+        int m = pattern.length;
+        if (fromIndex > size - m) {
+            fromIndex = size - m;
+        }
+        if (fromIndex < 0) {
+            return -1;
+        }
+        if (m == 0) {
+            return fromIndex;
+        }
+        if (m == 1) {
+            return findLast(pattern[0], fromIndex);
+        }
+        int[] shift = ByteSearch.backwardShifts(pattern);
+        byte first = pattern[0];
+        int pos = fromIndex;
+        while (pos >= 0) {
+            int seg = segmentOf(pos);
+            if (pos + m <= starts[seg] + lengths[seg]) {
+                byte[] data = segments[seg];
+                int base = offsets[seg] - starts[seg];
+                int limit = starts[seg];
+                while (pos >= limit) {
+                    byte c = data[base + pos];
+                    if (c == first && ByteSearch.regionMatches(data, base + pos + 1, pattern, 1, m - 1)) {
+                        return pos;
+                    }
+                    pos -= shift[c & 0xff];
+                }
+            } else {
+                byte c = byteAt(pos);
+                if (c == first && matchesAt(pos, pattern)) {
+                    return pos;
+                }
+                pos -= shift[c & 0xff];
+            }
+        }
+        return -1;
+    }
 
-        if (realStore.length == 0) {
-            throw new ArrayIndexOutOfBoundsException("Cannot access index (" + start + ") in empty builder. Append some data first!");
+    /**
+     *
+     * @param pattern The bytes to search for
+     * @return true if the builder holds the pattern anywhere
+     */
+    public boolean contains(byte[] pattern) {
+        return indexOf(pattern, 0) >= 0;
+    }
+
+    /**
+     * Creates a read-only view of a range of the builder. The view refers to
+     * the builder's segments, so nothing is copied. It is a snapshot: the
+     * builder copies a shared segment before writing to it, so later edits
+     * never show through the view.
+     *
+     * @param startIndex The index of the first byte of the view
+     * @param numberOfItems The length of the view
+     * @return the view
+     */
+    public ByteArraySlice slice(int startIndex, int numberOfItems) {
+        long stamp = lock.writeLock();
+        try {
+            reconcile();
+            return sliceOf(startIndex, numberOfItems);
+        } finally {
+            lock.unlockWrite(stamp);
         }
-        if (start < 0) {
+    }
+
+    private ByteArraySlice sliceOf(int startIndex, int numberOfItems) {
+        if (startIndex < 0 || numberOfItems < 0) {
             throw new ArrayIndexOutOfBoundsException("Input Index cannot be negative.");
         }
-        if (start >= realStore.length) {
-            throw new ArrayIndexOutOfBoundsException("Input Index (" + start + ") >= Builder Size(" + realStore.length + ")");
+        if (startIndex + numberOfItems > size) {
+            throw new ArrayIndexOutOfBoundsException("Input Index (" + startIndex + ") + Input Length >= Builder Size(" + size + ") Space not enough!");
         }
-        if (start >= end) {
-            throw new ArrayIndexOutOfBoundsException("Start Index (" + start + ") >= End Index(" + end + ") is just plain wrong");
+        if (numberOfItems == 0) {
+            return new ByteArraySlice(new byte[0][], new int[0], new int[0], 0);
         }
 
-        if (end > realStore.length) {
-            throw new ArrayIndexOutOfBoundsException("End Index (" + end + ") > Builder Size(" + realStore.length + ") is an out-of-bounds indexing error!");
+        int first = segmentOf(startIndex);
+        int last = segmentOf(startIndex + numberOfItems - 1);
+        int count = last - first + 1;
+        byte[][] arrays = Arrays.copyOfRange(segments, first, last + 1);
+        int[] from = Arrays.copyOfRange(offsets, first, last + 1);
+        int[] len = Arrays.copyOfRange(lengths, first, last + 1);
+        int cut = startIndex - starts[first];
+        from[0] += cut;
+        len[0] -= cut;
+        len[count - 1] -= starts[last] + lengths[last] - (startIndex + numberOfItems);
+        share();
+        return new ByteArraySlice(arrays, from, len, count);
+    }
+
+    /**
+     * Freezes the current contents of the builder. The result is immutable
+     * and may be read from any number of threads; the builder itself stays
+     * usable and copies a shared segment before writing to it.
+     *
+     * @return an immutable view of the whole builder
+     */
+    public ByteArraySlice freeze() {
+        long stamp = lock.writeLock();
+        try {
+            reconcile();
+            return sliceOf(0, size);
+        } finally {
+            lock.unlockWrite(stamp);
         }
+    }
 
-        byte[] data = new byte[realStore.length - numberOfItems];
+    /**
+     *
+     * @return a stream that reads the current contents of the builder
+     * straight out of its segments
+     * @see ByteArrayBuilder#slice(int, int)
+     */
+    public InputStream asInputStream() {
+        return freeze().asInputStream();
+    }
 
-        int ind = 0;
+    /**
+     *
+     * @return a channel that reads the current contents of the builder
+     * straight out of its segments
+     * @see ByteArrayBuilder#slice(int, int)
+     */
+    public ReadableByteChannel asReadableByteChannel() {
+        return freeze().asReadableByteChannel();
+    }
 
-        //[4,5,2,3,1,8,6,9]
-        //[0,1,2,3,4,5,6,7] from 2 , 3 elems...end = start+num-1 = 2 + 3 - 1 = 4
-        //[4,5,8,6]
-        System.arraycopy(realStore, 0, data, ind, start);
+    /**
+     * Writes the contents of the builder to the stream, one segment at a
+     * time. No combined array is built.
+     *
+     * @param out The stream to write to. It is neither flushed nor closed.
+     * @return the number of bytes written
+     * @throws IOException if the stream fails
+     */
+    public long writeTo(OutputStream out) throws IOException {
+        long stamp = lockForReading();
+        try {
+            for (int i = 0; i < segmentCount; i++) {
+                out.write(segments[i], offsets[i], lengths[i]);
+            }
+            return size;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
 
-        ind += start;
+    /**
+     * Writes the contents of the builder to the channel, one segment at a
+     * time, by wrapping each segment in a {@link ByteBuffer}. No combined
+     * array is built. The channel should be in blocking mode.
+     *
+     * @param channel The channel to write to. It is not closed.
+     * @return the number of bytes written
+     * @throws IOException if the channel fails
+     */
+    public long writeTo(WritableByteChannel channel) throws IOException {
+        long stamp = lockForReading();
+        try {
+            for (int i = 0; i < segmentCount; i++) {
+                ByteBuffer src = ByteBuffer.wrap(segments[i], offsets[i], lengths[i]);
+                while (src.hasRemaining()) {
+                    channel.write(src);
+                }
+            }
+            return size;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
 
-        System.arraycopy(realStore, end + 1, data, ind, realStore.length - end - 1);
+    /**
+     * Writes the contents of the builder to the channel with vectored writes:
+     * the segments are wrapped in {@link ByteBuffer}s and handed to
+     * {@link GatheringByteChannel#write(ByteBuffer[], int, int)} in batches.
+     * No combined array is built. The channel should be in blocking mode.
+     *
+     * @param channel The channel to write to. It is not closed.
+     * @return the number of bytes written
+     * @throws IOException if the channel fails
+     */
+    public long writeTo(GatheringByteChannel channel) throws IOException {
+        long stamp = lockForReading();
+        try {
+            ByteBuffer[] srcs = new ByteBuffer[Math.min(segmentCount, MAX_GATHER)];
+            int seg = 0;
+            while (seg < segmentCount) {
+                int count = Math.min(segmentCount - seg, srcs.length);
+                long pending = 0;
+                for (int i = 0; i < count; i++, seg++) {
+                    srcs[i] = ByteBuffer.wrap(segments[seg], offsets[seg], lengths[seg]);
+                    pending += lengths[seg];
+                }
+                int first = 0;
+                while (pending > 0) {
+                    pending -= channel.write(srcs, first, count - first);
+                    while (first < count && !srcs[first].hasRemaining()) {
+                        first++;
+                    }
+                }
+            }
+            return size;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
 
-        this.realStore = data;
-        return this;
+    /**
+     * Compresses the builder into another builder. The segments are fed to
+     * the deflater where they lie, and the deflater writes straight into the
+     * tail arrays of the target, so neither side is ever flattened.
+     *
+     * The builder is only locked while a {@link ByteArrayBuilder#snapshot()}
+     * of it is taken, and the snapshot is compressed with only the target
+     * locked. So two builders may be compressed into each other at the same
+     * time, and writers to this builder are not held up.
+     *
+     * @param target The builder that the compressed bytes are appended to. It
+     * must not be this builder.
+     * @param deflater The deflater to use. It is reset first and is not ended,
+     * so it may be reused.
+     * @return the number of compressed bytes appended
+     */
+    public long compressTo(ByteArrayBuilder target, Deflater deflater) {
+        if (target == this) {
+            throw new IllegalArgumentException("Cannot compress a builder into itself");
+        }
+        ByteArrayBuilder source = snapshot();
+        deflater.reset();
+        long total = 0;
+        for (int i = 0; i < source.segmentCount; i++) {
+            deflater.setInput(source.segments[i], source.offsets[i], source.lengths[i]);
+            total += target.appendDeflated(deflater, false);
+        }
+        deflater.finish();
+        return total + target.appendDeflated(deflater, true);
     }
 
     /**
+     * Compresses the builder onto a stream. The segments are fed to the
+     * deflater where they lie; the output goes through one bounded buffer.
+     * As with {@link ByteArrayBuilder#compressTo(ByteArrayBuilder, Deflater)},
+     * a snapshot is compressed, so the stream is written to without this
+     * builder locked.
      *
-     * @return the builder data as a byte array
+     * @param out The stream to write to. It is neither flushed nor closed.
+     * @param deflater The deflater to use. It is reset first and is not ended,
+     * so it may be reused.
+     * @return the number of compressed bytes written
+     * @throws IOException if the stream fails
      */
-    public synchronized byte[] getBytes() {
-        reconcile();
-        return realStore;
+    public long compressTo(OutputStream out, Deflater deflater) throws IOException {
+        ByteArrayBuilder source = snapshot();
+        deflater.reset();
+        byte[] buffer = new byte[COMPRESSION_BUFFER_SIZE];
+        long total = 0;
+        for (int i = 0; i < source.segmentCount; i++) {
+            deflater.setInput(source.segments[i], source.offsets[i], source.lengths[i]);
+            while (!deflater.needsInput()) {
+                int n = deflater.deflate(buffer);
+                out.write(buffer, 0, n);
+                total += n;
+            }
+        }
+        deflater.finish();
+        while (!deflater.finished()) {
+            int n = deflater.deflate(buffer);
+            out.write(buffer, 0, n);
+            total += n;
+        }
+        return total;
     }
 
+    /**
+     * Decompresses the builder, which holds compressed data, into another
+     * builder. The segments are fed to the inflater where they lie, and the
+     * inflater writes straight into the tail arrays of the target. As with
+     * {@link ByteArrayBuilder#compressTo(ByteArrayBuilder, Deflater)}, a
+     * snapshot is decompressed with only the target locked.
+     *
+     * @param target The builder that the decompressed bytes are appended to.
+     * It must not be this builder.
+     * @param inflater The inflater to use. It is reset first and is not
+     * ended, so it may be reused.
+     * @return the number of decompressed bytes appended
+     * @throws DataFormatException if the data is not valid compressed data
+     * @throws EOFException if the data ends before the compressed stream does
+     */
+    public long inflateTo(ByteArrayBuilder target, Inflater inflater) throws DataFormatException, EOFException {
+        if (target == this) {
+            throw new IllegalArgumentException("Cannot decompress a builder into itself");
+        }
+        ByteArrayBuilder source = snapshot();
+        inflater.reset();
+        long total = 0;
+        for (int i = 0; i < source.segmentCount && !inflater.finished(); i++) {
+            inflater.setInput(source.segments[i], source.offsets[i], source.lengths[i]);
+            total += target.appendInflated(inflater);
+        }
+        if (!inflater.finished()) {
+            throw new EOFException("Unexpected end of compressed data");
+        }
+        return total;
+    }
+
+    /**
+     * Decompresses a stream onto the end of this builder. The input goes
+     * through one bounded buffer; the inflater writes straight into the tail
+     * arrays of the builder. The stream should hold nothing after the
+     * compressed data, as the inflater may read past its end.
+     *
+     * @param in The stream to read. It is not closed.
+     * @param inflater The inflater to use. It is reset first and is not
+     * ended, so it may be reused.
+     * @return the number of decompressed bytes appended
+     * @throws IOException if the stream fails or ends before the compressed
+     * data does
+     * @throws DataFormatException if the data is not valid compressed data
+     */
+    public long inflateFrom(InputStream in, Inflater inflater) throws IOException, DataFormatException {
+        inflater.reset();
+        byte[] buffer = new byte[COMPRESSION_BUFFER_SIZE];
+        long total = 0;
+        //Held throughout, so that no other append lands inside the decompressed bytes.
+        long stamp = lock.writeLock();
+        try {
+            reconcile();
+            while (!inflater.finished()) {
+                if (inflater.needsInput()) {
+                    int n = in.read(buffer);
+                    if (n < 0) {
+                        throw new EOFException("Unexpected end of compressed data");
+                    }
+                    inflater.setInput(buffer, 0, n);
+                }
+                total += inflate(inflater);
+            }
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+        return total;
+    }
+
+    /**
+     * Lets the deflater write its output straight into the tail of the
+     * builder, until it needs more input or, when finishing, is done.
+     *
+     * @return the number of bytes appended
+     */
+    long appendDeflated(Deflater deflater, boolean finishing) {
+        long stamp = lock.writeLock();
+        long total = 0;
+        try {
+            reconcile();
+            while (!deflater.finished() && (finishing || !deflater.needsInput())) {
+                if (tailRoom() == 0) {
+                    openTail(MIN_TAIL_SIZE);
+                }
+                int n = deflater.deflate(tail, tailEnd, tailRoom());
+                if (n > 0) {
+                    claimTail(n);
+                    total += n;
+                }
+            }
+            appended();
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+        return total;
+    }
+
+    /**
+     * Lets the inflater write its output straight into the tail of the
+     * builder, until it needs more input or is done.
+     *
+     * @return the number of bytes appended
+     */
+    private long appendInflated(Inflater inflater) throws DataFormatException {
+        long stamp = lock.writeLock();
+        try {
+            reconcile();
+            return inflate(inflater);
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * The body of {@link ByteArrayBuilder#appendInflated(Inflater)}, for a
+     * caller that already holds the write lock.
+     */
+    private long inflate(Inflater inflater) throws DataFormatException {
+        long total = 0;
+        while (!inflater.finished() && !inflater.needsInput()) {
+            if (inflater.needsDictionary()) {
+                throw new DataFormatException("The compressed data needs a preset dictionary");
+            }
+            if (tailRoom() == 0) {
+                openTail(MIN_TAIL_SIZE);
+            }
+            int n = inflater.inflate(tail, tailEnd, tailRoom());
+            if (n > 0) {
+                claimTail(n);
+                total += n;
+            }
+        }
+        appended();
+        return total;
+    }
+
+    /**
+     * Reads under the read lock, so other readers go on at the same time.
+     */
     @Override
     public String toString() {
-        reconcile();
-        synchronized (realStore) {
+        publish();
+        long stamp = lock.readLock();
+        try {
+            return format();
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
 
-            StringBuilder b = new StringBuilder("[");
-            for (byte e : realStore) {
-                b.append(e).append(" , ");
-            }
-            if (realStore.length == 0) {
-                return "[]; item-count = 0";
-            } else {
-                return b.substring(0, b.length() - 3).concat("]").concat("; item-count = " + length());
+    private String format() {
+        if (size == 0) {
+            return "[]; item-count = 0";
+        }
+
+        StringBuilder b = new StringBuilder("[");
+        for (int i = 0; i < segmentCount; i++) {
+            byte[] data = segments[i];
+            for (int j = offsets[i], end = j + lengths[i]; j < end; j++) {
+                b.append(data[j]).append(" , ");
             }
         }
+        return b.substring(0, b.length() - 3).concat("]").concat("; item-count = " + size);
     }
 
     public void log() {
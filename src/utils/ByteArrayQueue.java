@@ -0,0 +1,496 @@
+package utils;
+
+import java.io.EOFException;
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A first-in first-out counterpart of {@link ByteArrayBuilder}, for staging
+ * bytes between a producer, such as a network reader, and a consumer, such as
+ * a frame decoder. Bytes are written at the back and read from the front.
+ * Reading advances a head position in the front block, so consuming costs
+ * only the bytes copied out, never a shift of what is left; a block is
+ * reclaimed as soon as it has been read through.
+ *
+ * The queue may be bounded. The non-blocking methods
+ * ({@link ByteArrayQueue#offer(byte[], int, int)},
+ * {@link ByteArrayQueue#read(byte[], int, int)}) move what they can and return
+ * at once. The blocking ones ({@link ByteArrayQueue#put(byte[], int, int)},
+ * {@link ByteArrayQueue#take(byte[], int, int)},
+ * {@link ByteArrayQueue#readFully(byte[], int, int)}) wait for room or for
+ * data. {@link ByteArrayQueue#close()} marks the end of the data: consumers
+ * drain what is left and then see the end.
+ *
+ * @author GBEMIRO JIBOYE <gbenroscience@gmail.com>
+ */
+public class ByteArrayQueue implements AutoCloseable {
+
+    /**
+     * The block size used when none is given.
+     */
+    public static final int DEFAULT_BLOCK_SIZE = 8192;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+
+    private final long capacity;
+    private final int blockSize;
+    private final SegmentPool pool;
+    /**
+     * The blocks holding the data, oldest first. The data starts at
+     * <code>head</code> in the first block and ends at <code>tailEnd</code> in
+     * the last.
+     */
+    private final ArrayDeque<byte[]> blocks = new ArrayDeque<>();
+    private int head;
+    private int tailEnd;
+    private long size;
+    private boolean closed;
+
+    /**
+     * Creates an unbounded queue.
+     */
+    public ByteArrayQueue() {
+        this(Long.MAX_VALUE);
+    }
+
+    /**
+     *
+     * @param capacity The most bytes the queue holds at once. Producers wait,
+     * or write less, when it is full.
+     */
+    public ByteArrayQueue(long capacity) {
+        this(capacity, DEFAULT_BLOCK_SIZE, null);
+    }
+
+    /**
+     *
+     * @param capacity The most bytes the queue holds at once
+     * @param blockSize The size of the blocks the data is stored in
+     * @param pool The pool that blocks are drawn from and handed back to, or
+     * null to allocate them
+     */
+    public ByteArrayQueue(long capacity, int blockSize, SegmentPool pool) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be > 0");
+        }
+        if (blockSize <= 0) {
+            throw new IllegalArgumentException("blockSize must be > 0");
+        }
+        this.capacity = capacity;
+        this.blockSize = blockSize;
+        this.pool = pool;
+    }
+
+    private byte[] newBlock() {
+        return pool == null ? new byte[blockSize] : pool.acquire(blockSize);
+    }
+
+    private void releaseBlock(byte[] block) {
+        if (pool != null) {
+            pool.release(block);
+        }
+    }
+
+    /**
+     * Copies bytes onto the back of the queue. The caller holds the lock and
+     * has checked that they fit.
+     */
+    private void enqueue(byte[] src, int off, int len) {
+        byte[] last = blocks.peekLast();
+        while (len > 0) {
+            if (last == null || tailEnd == last.length) {
+                last = newBlock();
+                blocks.addLast(last);
+                tailEnd = 0;
+            }
+            int n = Math.min(len, last.length - tailEnd);
+            System.arraycopy(src, off, last, tailEnd, n);
+            tailEnd += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    /**
+     * Copies bytes off the front of the queue, or only skips them if
+     * <code>dst</code> is null, and reclaims the blocks read through. The
+     * caller holds the lock and has checked that there are enough bytes.
+     */
+    private void dequeue(byte[] dst, int off, int len) {
+        size -= len;
+        while (len > 0) {
+            byte[] first = blocks.peekFirst();
+            int end = blocks.size() == 1 ? tailEnd : first.length;
+            int n = Math.min(len, end - head);
+            if (dst != null) {
+                System.arraycopy(first, head, dst, off, n);
+                off += n;
+            }
+            head += n;
+            len -= n;
+            if (head == end) {
+                blocks.pollFirst();
+                releaseBlock(first);
+                head = 0;
+            }
+        }
+        if (blocks.isEmpty()) {
+            tailEnd = 0;
+        }
+        notFull.signalAll();
+    }
+
+    private void ensureOpen() {
+        if (closed) {
+            throw new IllegalStateException("This queue has been closed");
+        }
+    }
+
+    /**
+     * Writes as much of the range as there is room for, without waiting.
+     *
+     * @param src The array holding the bytes
+     * @param off The offset of the bytes in the array
+     * @param len The number of bytes to write
+     * @return the number of bytes written, which is less than
+     * <code>len</code> if the queue filled up
+     */
+    public int offer(byte[] src, int off, int len) {
+        DataChunker.checkBounds(off, len, src.length);
+        lock.lock();
+        try {
+            ensureOpen();
+            int n = (int) Math.min(len, capacity - size);
+            if (n > 0) {
+                enqueue(src, off, n);
+                size += n;
+                notEmpty.signalAll();
+            }
+            return n;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     *
+     * @param src The bytes to write
+     * @return true if they were all written; false, with nothing written, if
+     * there was not enough room
+     */
+    public boolean offer(byte[] src) {
+        lock.lock();
+        try {
+            ensureOpen();
+            if (capacity - size < src.length) {
+                return false;
+            }
+            offer(src, 0, src.length);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Writes the whole range, waiting for room as needed. On a bounded
+     * queue, a range larger than the free room goes in piece by piece as the
+     * consumer makes room.
+     *
+     * @param src The array holding the bytes
+     * @param off The offset of the bytes in the array
+     * @param len The number of bytes to write
+     * @throws InterruptedException if the thread is interrupted while it
+     * waits; some of the bytes may have been written by then
+     */
+    public void put(byte[] src, int off, int len) throws InterruptedException {
+        DataChunker.checkBounds(off, len, src.length);
+        lock.lockInterruptibly();
+        try {
+            while (len > 0) {
+                ensureOpen();
+                while (size == capacity) {
+                    notFull.await();
+                    ensureOpen();
+                }
+                int n = (int) Math.min(len, capacity - size);
+                enqueue(src, off, n);
+                size += n;
+                off += n;
+                len -= n;
+                notEmpty.signalAll();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void put(byte[] src) throws InterruptedException {
+        put(src, 0, src.length);
+    }
+
+    /**
+     * Reads whatever is available, up to <code>len</code> bytes, without
+     * waiting.
+     *
+     * @param dst The array to read into
+     * @param off The offset in the array
+     * @param len The most bytes to read
+     * @return the number of bytes read; 0 if the queue is empty, or -1 if it
+     * is also closed
+     */
+    public int read(byte[] dst, int off, int len) {
+        DataChunker.checkBounds(off, len, dst.length);
+        lock.lock();
+        try {
+            if (size == 0) {
+                return closed ? -1 : 0;
+            }
+            int n = (int) Math.min(len, size);
+            dequeue(dst, off, n);
+            return n;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int read(byte[] dst) {
+        return read(dst, 0, dst.length);
+    }
+
+    /**
+     * Reads at least one byte, waiting for data if the queue is empty.
+     *
+     * @param dst The array to read into
+     * @param off The offset in the array
+     * @param len The most bytes to read
+     * @return the number of bytes read, or -1 if the queue is closed and
+     * empty
+     * @throws InterruptedException if the thread is interrupted while it
+     * waits
+     */
+    public int take(byte[] dst, int off, int len) throws InterruptedException {
+        DataChunker.checkBounds(off, len, dst.length);
+        lock.lockInterruptibly();
+        try {
+            if (len == 0) {
+                return 0;
+            }
+            while (size == 0) {
+                if (closed) {
+                    return -1;
+                }
+                notEmpty.await();
+            }
+            int n = (int) Math.min(len, size);
+            dequeue(dst, off, n);
+            return n;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * As {@link ByteArrayQueue#take(byte[], int, int)}, but gives up after
+     * the timeout.
+     *
+     * @param dst The array to read into
+     * @param off The offset in the array
+     * @param len The most bytes to read
+     * @param timeout How long to wait for data
+     * @param unit The unit of the timeout
+     * @return the number of bytes read; 0 if the wait timed out, or -1 if the
+     * queue is closed and empty
+     * @throws InterruptedException if the thread is interrupted while it
+     * waits
+     */
+    public int take(byte[] dst, int off, int len, long timeout, TimeUnit unit) throws InterruptedException {
+        DataChunker.checkBounds(off, len, dst.length);
+        long nanos = unit.toNanos(timeout);
+        lock.lockInterruptibly();
+        try {
+            if (len == 0) {
+                return 0;
+            }
+            while (size == 0) {
+                if (closed) {
+                    return -1;
+                }
+                if (nanos <= 0) {
+                    return 0;
+                }
+                nanos = notEmpty.awaitNanos(nanos);
+            }
+            int n = (int) Math.min(len, size);
+            dequeue(dst, off, n);
+            return n;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Reads exactly <code>len</code> bytes, waiting until they have all
+     * arrived. Nothing is consumed until they have, so a decoder can wait for
+     * a whole frame. The length must not exceed the capacity of the queue.
+     *
+     * @param dst The array to read into
+     * @param off The offset in the array
+     * @param len The number of bytes to read
+     * @throws InterruptedException if the thread is interrupted while it
+     * waits
+     * @throws EOFException if the queue is closed before enough bytes arrive
+     */
+    public void readFully(byte[] dst, int off, int len) throws InterruptedException, EOFException {
+        DataChunker.checkBounds(off, len, dst.length);
+        if (len > capacity) {
+            throw new IllegalArgumentException("Cannot wait for " + len + " bytes in a queue of capacity " + capacity);
+        }
+        lock.lockInterruptibly();
+        try {
+            while (size < len) {
+                if (closed) {
+                    throw new EOFException("Queue closed with " + size + " of " + len + " bytes");
+                }
+                notEmpty.await();
+            }
+            dequeue(dst, off, len);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Discards bytes from the front of the queue without copying them.
+     *
+     * @param n The most bytes to discard
+     * @return the number of bytes discarded
+     */
+    public long skip(long n) {
+        lock.lock();
+        try {
+            long skipped = Math.max(0, Math.min(n, size));
+            for (long left = skipped; left > 0;) {
+                int c = (int) Math.min(left, Integer.MAX_VALUE);
+                dequeue(null, 0, c);
+                left -= c;
+            }
+            return skipped;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     *
+     * @return the byte at the front of the queue, as 0 to 255, or -1 if the
+     * queue is empty. The byte is not consumed.
+     */
+    public int peek() {
+        lock.lock();
+        try {
+            if (size == 0) {
+                return -1;
+            }
+            return blocks.peekFirst()[head] & 0xff;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Copies bytes from the front of the queue without consuming them.
+     *
+     * @param dst The array to copy into
+     * @param off The offset in the array
+     * @param len The most bytes to copy
+     * @return the number of bytes copied
+     */
+    public int peek(byte[] dst, int off, int len) {
+        DataChunker.checkBounds(off, len, dst.length);
+        lock.lock();
+        try {
+            int n = (int) Math.min(len, size);
+            int from = head;
+            int left = n;
+            int count = blocks.size();
+            int i = 0;
+            for (byte[] block : blocks) {
+                if (left == 0) {
+                    break;
+                }
+                int end = ++i == count ? tailEnd : block.length;
+                int c = Math.min(left, end - from);
+                System.arraycopy(block, from, dst, off, c);
+                off += c;
+                left -= c;
+                from = 0;
+            }
+            return n;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     *
+     * @return the number of bytes waiting to be read
+     */
+    public long available() {
+        lock.lock();
+        try {
+            return size;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Discards everything in the queue and hands its blocks back to the pool.
+     */
+    public void clear() {
+        lock.lock();
+        try {
+            for (byte[] block : blocks) {
+                releaseBlock(block);
+            }
+            blocks.clear();
+            head = 0;
+            tailEnd = 0;
+            size = 0;
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public boolean isClosed() {
+        lock.lock();
+        try {
+            return closed;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Marks the end of the data. Later writes fail, and so do producers
+     * waiting for room; consumers read what is left and then see the end.
+     */
+    @Override
+    public void close() {
+        lock.lock();
+        try {
+            closed = true;
+            notEmpty.signalAll();
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+}
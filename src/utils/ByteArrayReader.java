@@ -0,0 +1,478 @@
+package utils;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A cursor that decodes the values written by the put methods of
+ * {@link ByteArrayBuilder}. It reads from a builder, an array or a
+ * {@link ByteBuffer}, and allocates nothing per value: a value that lies
+ * within one piece of the data is read with a single {@link VarHandle} access,
+ * and only a value that straddles two pieces is put together byte by byte.
+ *
+ * A reader over a builder reads a frozen view of it (see
+ * {@link ByteArrayBuilder#freeze()}), so later edits of the builder do not
+ * show through. A reader is for one thread.
+ *
+ * Reading past the end throws {@link BufferUnderflowException}, as a
+ * {@link ByteBuffer} does.
+ *
+ * @author GBEMIRO JIBOYE <gbenroscience@gmail.com>
+ */
+public final class ByteArrayReader {
+
+    private static final VarHandle SHORT_BE = MethodHandles.byteArrayViewVarHandle(short[].class, ByteOrder.BIG_ENDIAN);
+    private static final VarHandle SHORT_LE = MethodHandles.byteArrayViewVarHandle(short[].class, ByteOrder.LITTLE_ENDIAN);
+    private static final VarHandle CHAR_BE = MethodHandles.byteArrayViewVarHandle(char[].class, ByteOrder.BIG_ENDIAN);
+    private static final VarHandle CHAR_LE = MethodHandles.byteArrayViewVarHandle(char[].class, ByteOrder.LITTLE_ENDIAN);
+    private static final VarHandle INT_BE = MethodHandles.byteArrayViewVarHandle(int[].class, ByteOrder.BIG_ENDIAN);
+    private static final VarHandle INT_LE = MethodHandles.byteArrayViewVarHandle(int[].class, ByteOrder.LITTLE_ENDIAN);
+    private static final VarHandle LONG_BE = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.BIG_ENDIAN);
+    private static final VarHandle LONG_LE = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+
+    private final byte[][] arrays;
+    private final int[] offsets;
+    private final int[] lengths;
+    private final int count;
+    private final int length;
+    /**
+     * A buffer that has no accessible array; it is then the only piece, and
+     * is read with its own absolute getters.
+     */
+    private final ByteBuffer buffer;
+
+    /**
+     * The piece being read: its array, the read position in the array and
+     * the end of the piece in the array.
+     */
+    private int piece;
+    private byte[] cur;
+    private int pos;
+    private int end;
+    /**
+     * The position in the data of the first byte of the current piece.
+     */
+    private int pieceStart;
+
+    private boolean bigEndian = true;
+
+    /**
+     *
+     * @param builder The builder to read. The reader sees its contents as
+     * they are now.
+     */
+    public ByteArrayReader(ByteArrayBuilder builder) {
+        this(builder.freeze());
+    }
+
+    /**
+     *
+     * @param slice The view to read
+     */
+    public ByteArrayReader(ByteArraySlice slice) {
+        this(slice.arrays, slice.offsets, slice.lengths, slice.count, null);
+    }
+
+    public ByteArrayReader(byte[] data) {
+        this(data, 0, data.length);
+    }
+
+    /**
+     *
+     * @param data The array to read
+     * @param offset The offset of the first byte to read
+     * @param length The number of bytes to read
+     */
+    public ByteArrayReader(byte[] data, int offset, int length) {
+        this(new byte[][]{data}, new int[]{offset}, new int[]{length}, 1, null);
+        DataChunker.checkBounds(offset, length, data.length);
+    }
+
+    /**
+     * Reads the remaining bytes of the buffer. The buffer's position, limit
+     * and byte order are left alone.
+     *
+     * @param data The buffer to read
+     */
+    public ByteArrayReader(ByteBuffer data) {
+        this(data.hasArray() ? new byte[][]{data.array()} : new byte[0][],
+                new int[]{data.hasArray() ? data.arrayOffset() + data.position() : 0},
+                new int[]{data.remaining()},
+                data.hasArray() ? 1 : 0,
+                data.hasArray() ? null : data.slice());
+    }
+
+    private ByteArrayReader(byte[][] arrays, int[] offsets, int[] lengths, int count, ByteBuffer buffer) {
+        this.arrays = arrays;
+        this.offsets = offsets;
+        this.lengths = lengths;
+        this.count = count;
+        this.buffer = buffer;
+        if (buffer != null) {
+            length = buffer.remaining();
+        } else {
+            int total = 0;
+            for (int i = 0; i < count; i++) {
+                total += lengths[i];
+            }
+            length = total;
+        }
+        rewind();
+    }
+
+    /**
+     * Sets the byte order of the multi-byte getters. The default, as for
+     * {@link ByteBuffer}, is {@link ByteOrder#BIG_ENDIAN}.
+     *
+     * @param order The new byte order
+     * @return this reader
+     */
+    public ByteArrayReader order(ByteOrder order) {
+        bigEndian = order == ByteOrder.BIG_ENDIAN;
+        if (buffer != null) {
+            buffer.order(order);
+        }
+        return this;
+    }
+
+    public ByteOrder order() {
+        return bigEndian ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN;
+    }
+
+    /**
+     *
+     * @return the total number of bytes the reader covers
+     */
+    public int length() {
+        return length;
+    }
+
+    /**
+     *
+     * @return the number of bytes read so far
+     */
+    public int position() {
+        if (buffer != null) {
+            return pos;
+        }
+        return cur == null ? length : pieceStart + pos - offsets[piece];
+    }
+
+    public int remaining() {
+        return length - position();
+    }
+
+    public boolean hasRemaining() {
+        return position() < length;
+    }
+
+    /**
+     * Moves the reader back to the start.
+     *
+     * @return this reader
+     */
+    public ByteArrayReader rewind() {
+        piece = 0;
+        pieceStart = 0;
+        if (buffer != null) {
+            pos = 0;
+            end = length;
+        } else if (count > 0) {
+            cur = arrays[0];
+            pos = offsets[0];
+            end = pos + lengths[0];
+        } else {
+            cur = null;
+            pos = 0;
+            end = 0;
+        }
+        return this;
+    }
+
+    /**
+     *
+     * @param newPosition The number of bytes from the start to move to
+     * @return this reader
+     */
+    public ByteArrayReader position(int newPosition) {
+        if (newPosition < 0 || newPosition > length) {
+            throw new IllegalArgumentException("Position (" + newPosition + ") is outside 0.." + length);
+        }
+        rewind();
+        return skip(newPosition);
+    }
+
+    /**
+     *
+     * @param n The number of bytes to step over
+     * @return this reader
+     */
+    public ByteArrayReader skip(int n) {
+        if (n < 0 || n > remaining()) {
+            throw new BufferUnderflowException();
+        }
+        if (buffer != null) {
+            pos += n;
+            return this;
+        }
+        while (n > 0) {
+            nextPiece();
+            int c = Math.min(n, end - pos);
+            pos += c;
+            n -= c;
+        }
+        return this;
+    }
+
+    /**
+     * Moves on to the next piece with data if the current one has been read
+     * through. Only called when bytes are known to remain.
+     */
+    private void nextPiece() {
+        while (pos == end) {
+            pieceStart += lengths[piece];
+            piece++;
+            cur = arrays[piece];
+            pos = offsets[piece];
+            end = pos + lengths[piece];
+        }
+    }
+
+    private void require(int n) {
+        if (remaining() < n) {
+            throw new BufferUnderflowException();
+        }
+    }
+
+    /**
+     * Reads a value that does not lie within the current piece, or any value
+     * of a buffer without an array.
+     *
+     * @param n The size of the value in bytes
+     * @return the value in the low <code>n</code> bytes
+     */
+    private long readSlow(int n) {
+        require(n);
+        if (buffer != null) {
+            int p = pos;
+            pos += n;
+            switch (n) {
+                case 2:
+                    return buffer.getShort(p);
+                case 4:
+                    return buffer.getInt(p);
+                default:
+                    return buffer.getLong(p);
+            }
+        }
+        long value = 0;
+        if (bigEndian) {
+            for (int i = 0; i < n; i++) {
+                nextPiece();
+                value = (value << 8) | (cur[pos++] & 0xFF);
+            }
+        } else {
+            for (int i = 0; i < n; i++) {
+                nextPiece();
+                value |= (long) (cur[pos++] & 0xFF) << (i << 3);
+            }
+        }
+        return value;
+    }
+
+    public byte get() {
+        if (pos < end && buffer == null) {
+            return cur[pos++];
+        }
+        require(1);
+        if (buffer != null) {
+            return buffer.get(pos++);
+        }
+        nextPiece();
+        return cur[pos++];
+    }
+
+    /**
+     * Copies bytes out of the reader, piece by piece.
+     *
+     * @param dst The array to copy into
+     * @param off The offset in the array
+     * @param len The number of bytes to copy
+     * @return this reader
+     */
+    public ByteArrayReader get(byte[] dst, int off, int len) {
+        DataChunker.checkBounds(off, len, dst.length);
+        require(len);
+        if (buffer != null) {
+            buffer.get(pos, dst, off, len);
+            pos += len;
+            return this;
+        }
+        while (len > 0) {
+            nextPiece();
+            int c = Math.min(len, end - pos);
+            System.arraycopy(cur, pos, dst, off, c);
+            pos += c;
+            off += c;
+            len -= c;
+        }
+        return this;
+    }
+
+    public ByteArrayReader get(byte[] dst) {
+        return get(dst, 0, dst.length);
+    }
+
+    public short getShort() {
+        int p = pos;
+        if (end - p >= 2 && buffer == null) {
+            pos = p + 2;
+            return (short) (bigEndian ? SHORT_BE : SHORT_LE).get(cur, p);
+        }
+        return (short) readSlow(2);
+    }
+
+    public char getChar() {
+        int p = pos;
+        if (end - p >= 2 && buffer == null) {
+            pos = p + 2;
+            return (char) (bigEndian ? CHAR_BE : CHAR_LE).get(cur, p);
+        }
+        return (char) readSlow(2);
+    }
+
+    public int getInt() {
+        int p = pos;
+        if (end - p >= 4 && buffer == null) {
+            pos = p + 4;
+            return (int) (bigEndian ? INT_BE : INT_LE).get(cur, p);
+        }
+        return (int) readSlow(4);
+    }
+
+    public long getLong() {
+        int p = pos;
+        if (end - p >= 8 && buffer == null) {
+            pos = p + 8;
+            return (long) (bigEndian ? LONG_BE : LONG_LE).get(cur, p);
+        }
+        return readSlow(8);
+    }
+
+    public float getFloat() {
+        return Float.intBitsToFloat(getInt());
+    }
+
+    public double getDouble() {
+        return Double.longBitsToDouble(getLong());
+    }
+
+    /**
+     * Reads an unsigned LEB128 varint, as written by protocol buffers: seven
+     * bits per byte, low groups first, with the high bit set on every byte
+     * but the last. The byte order setting does not apply.
+     *
+     * @return the value
+     * @throws IllegalArgumentException if the varint is longer than 5 bytes
+     */
+    public int getVarInt() {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            byte b = get();
+            value |= (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("Malformed varint at position " + position());
+    }
+
+    /**
+     * Reads an unsigned LEB128 varint of up to 64 bits.
+     *
+     * @return the value
+     * @throws IllegalArgumentException if the varint is longer than 10 bytes
+     * @see ByteArrayReader#getVarInt()
+     */
+    public long getVarLong() {
+        long value = 0;
+        for (int shift = 0; shift < 70; shift += 7) {
+            byte b = get();
+            value |= (long) (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("Malformed varint at position " + position());
+    }
+
+    /**
+     * Reads a ZigZag encoded varint, as written by
+     * {@link ByteArrayBuilder#appendZigZagVarInt(int)}.
+     *
+     * @return the value
+     */
+    public int getZigZagVarInt() {
+        int v = getVarInt();
+        return (v >>> 1) ^ -(v & 1);
+    }
+
+    /**
+     * Reads a ZigZag encoded varint, as written by
+     * {@link ByteArrayBuilder#appendZigZagVarLong(long)}.
+     *
+     * @return the value
+     */
+    public long getZigZagVarLong() {
+        long v = getVarLong();
+        return (v >>> 1) ^ -(v & 1);
+    }
+
+    /**
+     * Reads the length of the bytes that follow, as a varint.
+     */
+    private int getPrefix() {
+        int len = getVarInt();
+        if (len < 0 || len > remaining()) {
+            throw new BufferUnderflowException();
+        }
+        return len;
+    }
+
+    /**
+     * Reads bytes written by
+     * {@link ByteArrayBuilder#appendPrefixedBytes(byte[])}: a varint length,
+     * then that many bytes.
+     *
+     * @return a copy of the bytes
+     */
+    public byte[] getPrefixedBytes() {
+        byte[] data = new byte[getPrefix()];
+        get(data, 0, data.length);
+        return data;
+    }
+
+    /**
+     * Reads text written by
+     * {@link ByteArrayBuilder#appendPrefixedUtf8(CharSequence)}. Text that
+     * lies within one piece is decoded where it lies.
+     *
+     * @return the text
+     */
+    public String getPrefixedUtf8() {
+        int len = getPrefix();
+        if (end - pos >= len && buffer == null) {
+            String text = new String(cur, pos, len, StandardCharsets.UTF_8);
+            pos += len;
+            return text;
+        }
+        byte[] data = new byte[len];
+        get(data, 0, len);
+        return new String(data, StandardCharsets.UTF_8);
+    }
+
+}
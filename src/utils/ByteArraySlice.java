@@ -0,0 +1,333 @@
+package utils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * A read-only view of a range of a {@link ByteArrayBuilder}. The view refers
+ * to the builder's segments directly; creating it, reading it or streaming it
+ * copies nothing until bytes are asked for in an array.
+ *
+ * A view is immutable: the builder copies any segment it shares with a view
+ * before writing to it, and never hands such segments back to its pool. A
+ * view may therefore be read from many threads at once, though each stream or
+ * channel obtained from it is for one reader.
+ *
+ * @author GBEMIRO JIBOYE <gbenroscience@gmail.com>
+ */
+public final class ByteArraySlice {
+
+    /**
+     * The pieces of the view; package-private so that
+     * {@link ByteArrayReader} can read them in place.
+     */
+    final byte[][] arrays;
+    final int[] offsets;
+    final int[] lengths;
+    /**
+     * <code>starts[i]</code> is the index in the view of the first byte of
+     * piece <code>i</code>.
+     */
+    private final int[] starts;
+    final int count;
+    private final int length;
+    /**
+     * The piece that served the most recent lookup.
+     */
+    private int lastPiece;
+
+    ByteArraySlice(byte[][] arrays, int[] offsets, int[] lengths, int count) {
+        this.arrays = arrays;
+        this.offsets = offsets;
+        this.lengths = lengths;
+        this.count = count;
+        this.starts = new int[count];
+        int total = 0;
+        for (int i = 0; i < count; i++) {
+            starts[i] = total;
+            total += lengths[i];
+        }
+        this.length = total;
+    }
+
+    public int length() {
+        return length;
+    }
+
+    private int pieceOf(int index) {
+        int piece = lastPiece;
+        if (piece < count && index >= starts[piece] && index - starts[piece] < lengths[piece]) {
+            return piece;
+        }
+        int lo = 0;
+        int hi = count - 1;
+        while (lo < hi) {
+            int mid = (lo + hi + 1) >>> 1;
+            if (starts[mid] <= index) {
+                lo = mid;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        lastPiece = lo;
+        return lo;
+    }
+
+    /**
+     *
+     * @param index The index in the view whose byte we wish to return
+     * @return the byte at that index
+     */
+    public byte get(int index) {
+        if (index < 0 || index >= length) {
+            throw new ArrayIndexOutOfBoundsException("Input Index (" + index + ") >= Slice Size(" + length + ")");
+        }
+        int piece = pieceOf(index);
+        return arrays[piece][offsets[piece] + index - starts[piece]];
+    }
+
+    /**
+     * Copies bytes out of the view.
+     *
+     * @param index The index in the view to start copying from
+     * @param dst The destination array
+     * @param off The offset in the destination array
+     * @param len The number of bytes to copy
+     */
+    public void get(int index, byte[] dst, int off, int len) {
+        if (index < 0 || len < 0 || index + len > length) {
+            throw new ArrayIndexOutOfBoundsException("Input Index (" + index + ") + Input Length >= Slice Size(" + length + ")");
+        }
+        if (len == 0) {
+            return;
+        }
+        int piece = pieceOf(index);
+        while (len > 0) {
+            int from = index - starts[piece];
+            int n = Math.min(len, lengths[piece] - from);
+            System.arraycopy(arrays[piece], offsets[piece] + from, dst, off, n);
+            index += n;
+            off += n;
+            len -= n;
+            piece++;
+        }
+    }
+
+    /**
+     *
+     * @return a copy of the bytes in the view
+     */
+    public byte[] toByteArray() {
+        byte[] data = new byte[length];
+        get(0, data, 0, length);
+        return data;
+    }
+
+    /**
+     *
+     * @return one read-only {@link ByteBuffer} per piece of the view, in order.
+     * No bytes are copied.
+     */
+    public ByteBuffer[] asByteBuffers() {
+        ByteBuffer[] buffers = new ByteBuffer[count];
+        for (int i = 0; i < count; i++) {
+            buffers[i] = ByteBuffer.wrap(arrays[i], offsets[i], lengths[i]).slice().asReadOnlyBuffer();
+        }
+        return buffers;
+    }
+
+    /**
+     * A view that lies within one segment of the builder is wrapped without a
+     * copy. A view that spans segments cannot be one buffer without being
+     * copied; use {@link ByteArraySlice#asByteBuffers()} or
+     * {@link ByteArraySlice#asReadableByteChannel()} to avoid that.
+     *
+     * @return the view as one read-only {@link ByteBuffer}
+     */
+    public ByteBuffer asByteBuffer() {
+        if (count == 1) {
+            return ByteBuffer.wrap(arrays[0], offsets[0], lengths[0]).slice().asReadOnlyBuffer();
+        }
+        return ByteBuffer.wrap(toByteArray()).asReadOnlyBuffer();
+    }
+
+    /**
+     * Writes the view to the stream, one piece at a time.
+     *
+     * @param out The stream to write to. It is neither flushed nor closed.
+     * @throws IOException if the stream fails
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        for (int i = 0; i < count; i++) {
+            out.write(arrays[i], offsets[i], lengths[i]);
+        }
+    }
+
+    /**
+     *
+     * @return a stream that reads the view from the start, straight out of
+     * the pieces. It supports mark and reset.
+     */
+    public InputStream asInputStream() {
+        return new InputStream() {
+            private final Cursor cursor = new Cursor();
+            private int mark;
+
+            @Override
+            public int read() {
+                return cursor.remaining() == 0 ? -1 : cursor.next() & 0xff;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) {
+                DataChunker.checkBounds(off, len, b.length);
+                if (len == 0) {
+                    return 0;
+                }
+                if (cursor.remaining() == 0) {
+                    return -1;
+                }
+                return cursor.read(b, off, len);
+            }
+
+            @Override
+            public long skip(long n) {
+                return cursor.skip((int) Math.max(0, Math.min(n, cursor.remaining())));
+            }
+
+            @Override
+            public int available() {
+                return cursor.remaining();
+            }
+
+            @Override
+            public boolean markSupported() {
+                return true;
+            }
+
+            @Override
+            public synchronized void mark(int readlimit) {
+                mark = cursor.position;
+            }
+
+            @Override
+            public synchronized void reset() {
+                cursor.seek(mark);
+            }
+        };
+    }
+
+    /**
+     *
+     * @return a channel that reads the view from the start, straight out of
+     * the pieces
+     */
+    public ReadableByteChannel asReadableByteChannel() {
+        return new ReadableByteChannel() {
+            private final Cursor cursor = new Cursor();
+            private boolean open = true;
+
+            @Override
+            public int read(ByteBuffer dst) throws IOException {
+                if (!open) {
+                    throw new ClosedChannelException();
+                }
+                if (cursor.remaining() == 0) {
+                    return -1;
+                }
+                return cursor.read(dst);
+            }
+
+            @Override
+            public boolean isOpen() {
+                return open;
+            }
+
+            @Override
+            public void close() {
+                open = false;
+            }
+        };
+    }
+
+    /**
+     * A sequential read position over the pieces.
+     */
+    private final class Cursor {
+
+        int position;
+        int piece;
+        int pieceOffset;
+
+        int remaining() {
+            return length - position;
+        }
+
+        byte next() {
+            while (pieceOffset == lengths[piece]) {
+                piece++;
+                pieceOffset = 0;
+            }
+            position++;
+            return arrays[piece][offsets[piece] + pieceOffset++];
+        }
+
+        int read(byte[] b, int off, int len) {
+            int n = Math.min(len, remaining());
+            int left = n;
+            while (left > 0) {
+                if (pieceOffset == lengths[piece]) {
+                    piece++;
+                    pieceOffset = 0;
+                    continue;
+                }
+                int c = Math.min(left, lengths[piece] - pieceOffset);
+                System.arraycopy(arrays[piece], offsets[piece] + pieceOffset, b, off, c);
+                pieceOffset += c;
+                off += c;
+                left -= c;
+            }
+            position += n;
+            return n;
+        }
+
+        int read(ByteBuffer dst) {
+            int n = Math.min(dst.remaining(), remaining());
+            int left = n;
+            while (left > 0) {
+                if (pieceOffset == lengths[piece]) {
+                    piece++;
+                    pieceOffset = 0;
+                    continue;
+                }
+                int c = Math.min(left, lengths[piece] - pieceOffset);
+                dst.put(arrays[piece], offsets[piece] + pieceOffset, c);
+                pieceOffset += c;
+                left -= c;
+            }
+            position += n;
+            return n;
+        }
+
+        int skip(int n) {
+            seek(position + n);
+            return n;
+        }
+
+        void seek(int target) {
+            position = target;
+            if (target == length) {
+                piece = count;
+                pieceOffset = 0;
+                return;
+            }
+            piece = pieceOf(target);
+            pieceOffset = target - starts[piece];
+        }
+    }
+
+}
@@ -0,0 +1,118 @@
+package utils;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * Byte search primitives shared by the builders. Single bytes are found eight
+ * at a time with SWAR (SIMD within a register) arithmetic on longs; longer
+ * patterns use Boyer-Moore-Horspool skip tables.
+ *
+ * @author GBEMIRO JIBOYE <gbenroscience@gmail.com>
+ */
+final class ByteSearch {
+
+    private static final VarHandle LONG_LE = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+
+    private static final long LOW_BITS = 0x7F7F7F7F7F7F7F7FL;
+    private static final long ONES = 0x0101010101010101L;
+
+    private ByteSearch() {
+    }
+
+    /**
+     * @param word Eight bytes
+     * @param pattern The byte being searched for, repeated eight times
+     * @return a mask with the high bit set in exactly the bytes of the word
+     * that equal the byte being searched for
+     */
+    private static long matches(long word, long pattern) {
+        long w = word ^ pattern;
+        return ~(((w & LOW_BITS) + LOW_BITS) | w | LOW_BITS);
+    }
+
+    /**
+     *
+     * @return the first index in [from, to) of the array holding the byte, or
+     * -1
+     */
+    static int indexOf(byte[] a, int from, int to, byte b) {
+        long pattern = (b & 0xFFL) * ONES;
+        int i = from;
+        for (; i + 8 <= to; i += 8) {
+            long m = matches((long) LONG_LE.get(a, i), pattern);
+            if (m != 0) {
+                return i + (Long.numberOfTrailingZeros(m) >>> 3);
+            }
+        }
+        for (; i < to; i++) {
+            if (a[i] == b) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     *
+     * @return the last index in [from, to) of the array holding the byte, or
+     * -1
+     */
+    static int lastIndexOf(byte[] a, int from, int to, byte b) {
+        long pattern = (b & 0xFFL) * ONES;
+        int i = to;
+        for (; i - 8 >= from; i -= 8) {
+            long m = matches((long) LONG_LE.get(a, i - 8), pattern);
+            if (m != 0) {
+                return i - 1 - (Long.numberOfLeadingZeros(m) >>> 3);
+            }
+        }
+        for (i--; i >= from; i--) {
+            if (a[i] == b) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * The forward Horspool table: how far a window may move on when its last
+     * byte is a given value.
+     */
+    static int[] forwardShifts(byte[] pattern) {
+        int m = pattern.length;
+        int[] shift = new int[256];
+        Arrays.fill(shift, m);
+        for (int i = 0; i < m - 1; i++) {
+            shift[pattern[i] & 0xff] = m - 1 - i;
+        }
+        return shift;
+    }
+
+    /**
+     * The backward Horspool table: how far a window may move back when its
+     * first byte is a given value.
+     */
+    static int[] backwardShifts(byte[] pattern) {
+        int m = pattern.length;
+        int[] shift = new int[256];
+        Arrays.fill(shift, m);
+        for (int i = m - 1; i > 0; i--) {
+            shift[pattern[i] & 0xff] = i;
+        }
+        return shift;
+    }
+
+    /**
+     *
+     * @return true if <code>len</code> bytes of the array from
+     * <code>from</code> equal <code>len</code> bytes of the pattern from
+     * <code>patternFrom</code>
+     */
+    static boolean regionMatches(byte[] a, int from, byte[] pattern, int patternFrom, int len) {
+        return Arrays.equals(a, from, from + len, pattern, patternFrom, patternFrom + len);
+    }
+
+}
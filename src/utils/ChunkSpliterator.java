@@ -0,0 +1,354 @@
+package utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * The pull-based counterpart of {@link DataChunker}. It breaks the same
+ * sources into the same chunks, but hands each chunk over only when asked
+ * for it, as a {@link ByteBuffer}: through
+ * {@link ChunkSpliterator#tryAdvance(Consumer)}, an {@link Iterator} or a
+ * {@link Stream}. Every chunk has the chunk size except the last.
+ *
+ * Sources of known size (arrays, buffers, files and text) split on chunk
+ * boundaries, so a parallel stream works on whole chunks and still sees them
+ * in order where order matters. A stream source does not split.
+ *
+ * Chunks of an array or a buffer are read-only views of it; nothing is
+ * copied. Chunks of a file or stream are read into a new buffer each, so they
+ * stay valid once handed over.
+ *
+ * @author GBEMIRO JIBOYE <gbenroscience@gmail.com>
+ */
+public abstract class ChunkSpliterator implements Spliterator<ByteBuffer>, AutoCloseable {
+
+    final int chunkSize;
+
+    ChunkSpliterator(int chunkSize) {
+        if (chunkSize <= 0) {
+            throw new IllegalArgumentException("chunkSize must be > 0");
+        }
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     *
+     * @param chunkSize The size of each chunk
+     * @param blob The array whose data is to be broken into chunks
+     * @return the chunks of the array
+     */
+    public static ChunkSpliterator of(int chunkSize, byte[] blob) {
+        return new BufferChunks(chunkSize, ByteBuffer.wrap(blob).asReadOnlyBuffer(), 0, blob.length);
+    }
+
+    /**
+     *
+     * @param chunkSize The size of each chunk
+     * @param blob The buffer whose remaining bytes are to be broken into
+     * chunks. Its position and limit are left alone.
+     * @return the chunks of the buffer
+     */
+    public static ChunkSpliterator of(int chunkSize, ByteBuffer blob) {
+        ByteBuffer view = blob.slice().asReadOnlyBuffer();
+        return new BufferChunks(chunkSize, view, 0, view.remaining());
+    }
+
+    /**
+     * Reads the file through a {@link FileChannel} with positional reads, so
+     * that the parts of a split read it independently.
+     *
+     * @param chunkSize The size of each chunk
+     * @param blob The file whose data is to be broken into chunks
+     * @return the chunks of the file. Close it, or the stream made from it,
+     * to close the file.
+     * @throws IOException if the file cannot be opened
+     */
+    public static ChunkSpliterator of(int chunkSize, File blob) throws IOException {
+        FileChannel channel = FileChannel.open(blob.toPath(), StandardOpenOption.READ);
+        try {
+            return new FileChunks(chunkSize, channel, 0, channel.size(), true);
+        } catch (RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     *
+     * @param chunkSize The size of each chunk
+     * @param blob The stream whose data is to be broken into chunks
+     * @return the chunks of the stream. Close it, or the stream made from it,
+     * to close the input stream.
+     */
+    public static ChunkSpliterator of(int chunkSize, InputStream blob) {
+        return new StreamChunks(chunkSize, blob);
+    }
+
+    /**
+     * Breaks text into chunks of <code>chunkSize</code> chars, each encoded
+     * as UTF-8, as {@link DataChunker#DataChunker(int, String)} does.
+     *
+     * @param chunkSize The number of chars in each chunk
+     * @param blob The text to be broken into chunks
+     * @return the chunks of the text
+     */
+    public static ChunkSpliterator of(int chunkSize, String blob) {
+        return new TextChunks(chunkSize, blob, 0, blob.length());
+    }
+
+    public Iterator<ByteBuffer> iterator() {
+        return Spliterators.iterator(this);
+    }
+
+    /**
+     *
+     * @return a sequential stream of the chunks. Closing it closes this.
+     */
+    public Stream<ByteBuffer> stream() {
+        return StreamSupport.stream(this, false).onClose(this::close);
+    }
+
+    /**
+     *
+     * @return a parallel stream of the chunks. Closing it closes this.
+     */
+    public Stream<ByteBuffer> parallelStream() {
+        return StreamSupport.stream(this, true).onClose(this::close);
+    }
+
+    /**
+     * Lets go of the file or stream the chunks are read from, if any.
+     */
+    @Override
+    public void close() {
+    }
+
+    @Override
+    public int characteristics() {
+        return ORDERED | NONNULL | IMMUTABLE;
+    }
+
+    /**
+     * An I/O error of the file or stream the chunks are read from, as opposed
+     * to one thrown by the code the chunks are handed to.
+     */
+    static final class ReadFailure extends UncheckedIOException {
+
+        private static final long serialVersionUID = 1L;
+
+        ReadFailure(IOException cause) {
+            super(cause);
+        }
+    }
+
+    /**
+     * A source of known size that splits on chunk boundaries. It covers the
+     * units <code>from</code> (inclusive) to <code>to</code> (exclusive).
+     */
+    private abstract static class RangeChunks extends ChunkSpliterator {
+
+        long from;
+        final long to;
+
+        RangeChunks(int chunkSize, long from, long to) {
+            super(chunkSize);
+            this.from = from;
+            this.to = to;
+        }
+
+        /**
+         * @return the chunk of <code>len</code> units at <code>start</code>
+         */
+        abstract ByteBuffer chunk(long start, int len);
+
+        /**
+         * @return a source over the given range of the same data
+         */
+        abstract RangeChunks range(long from, long to);
+
+        @Override
+        public boolean tryAdvance(Consumer<? super ByteBuffer> action) {
+            if (from >= to) {
+                return false;
+            }
+            int len = (int) Math.min(chunkSize, to - from);
+            ByteBuffer chunk = chunk(from, len);
+            from += len;
+            action.accept(chunk);
+            return true;
+        }
+
+        @Override
+        public Spliterator<ByteBuffer> trySplit() {
+            long chunks = estimateSize();
+            if (chunks < 2) {
+                return null;
+            }
+            long mid = from + (chunks >>> 1) * chunkSize;
+            RangeChunks prefix = range(from, mid);
+            from = mid;
+            return prefix;
+        }
+
+        @Override
+        public long estimateSize() {
+            return (to - from + chunkSize - 1) / chunkSize;
+        }
+
+        @Override
+        public int characteristics() {
+            return super.characteristics() | SIZED | SUBSIZED;
+        }
+    }
+
+    private static final class BufferChunks extends RangeChunks {
+
+        private final ByteBuffer data;
+
+        BufferChunks(int chunkSize, ByteBuffer data, long from, long to) {
+            super(chunkSize, from, to);
+            this.data = data;
+        }
+
+        @Override
+        ByteBuffer chunk(long start, int len) {
+            return data.slice((int) start, len);
+        }
+
+        @Override
+        RangeChunks range(long from, long to) {
+            return new BufferChunks(chunkSize, data, from, to);
+        }
+    }
+
+    private static final class FileChunks extends RangeChunks {
+
+        private final FileChannel channel;
+        /**
+         * Only the spliterator that opened the channel closes it.
+         */
+        private final boolean owner;
+
+        FileChunks(int chunkSize, FileChannel channel, long from, long to, boolean owner) {
+            super(chunkSize, from, to);
+            this.channel = channel;
+            this.owner = owner;
+        }
+
+        @Override
+        ByteBuffer chunk(long start, int len) {
+            ByteBuffer chunk = ByteBuffer.allocate(len);
+            try {
+                while (chunk.hasRemaining()) {
+                    if (channel.read(chunk, start + chunk.position()) < 0) {
+                        throw new IOException("File ended at " + (start + chunk.position()) + " of " + to + " bytes");
+                    }
+                }
+            } catch (IOException e) {
+                throw new ReadFailure(e);
+            }
+            return chunk.flip();
+        }
+
+        @Override
+        RangeChunks range(long from, long to) {
+            return new FileChunks(chunkSize, channel, from, to, false);
+        }
+
+        @Override
+        public void close() {
+            if (owner) {
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    throw new ReadFailure(e);
+                }
+            }
+        }
+    }
+
+    private static final class TextChunks extends RangeChunks {
+
+        private final String text;
+
+        TextChunks(int chunkSize, String text, long from, long to) {
+            super(chunkSize, from, to);
+            this.text = text;
+        }
+
+        @Override
+        ByteBuffer chunk(long start, int len) {
+            int begin = (int) start;
+            return ByteBuffer.wrap(text.substring(begin, begin + len).getBytes(StandardCharsets.UTF_8));
+        }
+
+        @Override
+        RangeChunks range(long from, long to) {
+            return new TextChunks(chunkSize, text, from, to);
+        }
+    }
+
+    private static final class StreamChunks extends ChunkSpliterator {
+
+        private final InputStream in;
+        private boolean done;
+
+        StreamChunks(int chunkSize, InputStream in) {
+            super(chunkSize);
+            this.in = in;
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super ByteBuffer> action) {
+            if (done) {
+                return false;
+            }
+            byte[] chunk;
+            try {
+                chunk = in.readNBytes(chunkSize);
+            } catch (IOException e) {
+                throw new ReadFailure(e);
+            }
+            if (chunk.length < chunkSize) {
+                done = true;
+                if (chunk.length == 0) {
+                    return false;
+                }
+            }
+            action.accept(ByteBuffer.wrap(chunk));
+            return true;
+        }
+
+        @Override
+        public Spliterator<ByteBuffer> trySplit() {
+            return null;
+        }
+
+        @Override
+        public long estimateSize() {
+            return done ? 0 : Long.MAX_VALUE;
+        }
+
+        @Override
+        public void close() {
+            try {
+                in.close();
+            } catch (IOException e) {
+                throw new ReadFailure(e);
+            }
+        }
+    }
+
+}
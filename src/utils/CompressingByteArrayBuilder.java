@@ -0,0 +1,150 @@
+package utils;
+
+import java.util.zip.Deflater;
+
+/**
+ * A builder that compresses its data as it arrives. Appended bytes are fed
+ * to a {@link Deflater} straight away, and the deflater writes into the tail
+ * arrays of a {@link ByteArrayBuilder} that holds the compressed payload. The
+ * uncompressed payload is never held in memory as a whole.
+ *
+ * Small appends are gathered in a bounded staging array first, so that the
+ * deflater is not called once per byte; appends of a staging array or more
+ * are fed to it where they lie.
+ *
+ * Use {@link ByteArrayBuilder#inflateTo(ByteArrayBuilder, java.util.zip.Inflater)}
+ * on the result to get the data back.
+ *
+ * @author GBEMIRO JIBOYE <gbenroscience@gmail.com>
+ */
+public class CompressingByteArrayBuilder implements AutoCloseable {
+
+    /**
+     * The size of the staging array for small appends.
+     */
+    private static final int STAGING_SIZE = 8192;
+
+    private final Deflater deflater;
+    private final boolean ownsDeflater;
+    private final byte[] staging = new byte[STAGING_SIZE];
+    private int staged;
+    private ByteArrayBuilder compressed = new ByteArrayBuilder();
+    private long length;
+
+    /**
+     * Compresses with a deflater of the default level, which is ended when
+     * the builder is closed.
+     */
+    public CompressingByteArrayBuilder() {
+        this(new Deflater(), true);
+    }
+
+    /**
+     *
+     * @param deflater The deflater to compress with. It is reset before the
+     * first append and after each {@link CompressingByteArrayBuilder#finish()},
+     * and is not ended by this builder.
+     */
+    public CompressingByteArrayBuilder(Deflater deflater) {
+        this(deflater, false);
+    }
+
+    private CompressingByteArrayBuilder(Deflater deflater, boolean ownsDeflater) {
+        this.deflater = deflater;
+        this.ownsDeflater = ownsDeflater;
+        deflater.reset();
+    }
+
+    private void flushStaging() {
+        if (staged > 0) {
+            deflater.setInput(staging, 0, staged);
+            compressed.appendDeflated(deflater, false);
+            staged = 0;
+        }
+    }
+
+    /**
+     *
+     * @param data A byte array to append to the builder
+     * @return the instance of this builder object to facilitate chaining calls
+     */
+    public synchronized CompressingByteArrayBuilder append(byte[] data) {
+        return append(data, 0, data.length);
+    }
+
+    /**
+     *
+     * @param data The array holding the bytes to append
+     * @param offset The offset of the bytes in the array
+     * @param len The number of bytes to append
+     * @return the instance of this builder object to facilitate chaining calls
+     */
+    public synchronized CompressingByteArrayBuilder append(byte[] data, int offset, int len) {
+        DataChunker.checkBounds(offset, len, data.length);
+        if (len >= STAGING_SIZE) {
+            flushStaging();
+            deflater.setInput(data, offset, len);
+            compressed.appendDeflated(deflater, false);
+        } else {
+            if (staged + len > STAGING_SIZE) {
+                flushStaging();
+            }
+            System.arraycopy(data, offset, staging, staged, len);
+            staged += len;
+        }
+        length += len;
+        return this;
+    }
+
+    public synchronized CompressingByteArrayBuilder append(byte data) {
+        if (staged == STAGING_SIZE) {
+            flushStaging();
+        }
+        staging[staged++] = data;
+        length++;
+        return this;
+    }
+
+    /**
+     *
+     * @return the number of uncompressed bytes appended since the last
+     * {@link CompressingByteArrayBuilder#finish()}
+     */
+    public synchronized long length() {
+        return length;
+    }
+
+    /**
+     * Ends the compressed stream and hands it over. The builder then starts a
+     * new, empty payload.
+     *
+     * @return the compressed payload
+     */
+    public synchronized ByteArrayBuilder finish() {
+        flushStaging();
+        deflater.finish();
+        compressed.appendDeflated(deflater, true);
+        ByteArrayBuilder result = compressed;
+        compressed = new ByteArrayBuilder();
+        deflater.reset();
+        length = 0;
+        return result;
+    }
+
+    /**
+     * Drops the payload in progress and, if this builder created its
+     * deflater, ends the deflater.
+     */
+    @Override
+    public synchronized void close() {
+        staged = 0;
+        length = 0;
+        compressed = new ByteArrayBuilder();
+        if (ownsDeflater) {
+            deflater.end();
+        } else {
+            deflater.reset();
+        }
+    }
+
+}
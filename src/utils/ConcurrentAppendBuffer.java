@@ -0,0 +1,267 @@
+package utils;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * The staging area behind the concurrent append mode of
+ * {@link ByteArrayBuilder}. Producers never lock: each append reserves its
+ * range with a compare-and-set on the shared write offset and then copies
+ * its bytes into fixed-size blocks at that range. The order of the data is the
+ * order of the reservations. A reservation that would take the builder past
+ * the int range is refused before it is made, so no range is ever left
+ * unwritten.
+ *
+ * A single consumer (the builder, while reconciling) collects the longest
+ * prefix whose bytes have all been written. It never waits for producers that
+ * are still copying.
+ *
+ * Offsets keep growing for the life of the buffer, across every clear of the
+ * builder, so the blocks are held in a ring: a block lives in the slot given
+ * by its offset modulo the span of the ring, and its slot is free again once
+ * the block has been collected.
+ *
+ * @author GBEMIRO JIBOYE <gbenroscience@gmail.com>
+ */
+final class ConcurrentAppendBuffer {
+
+    private static final int BLOCK_SHIFT = 16;
+    private static final int BLOCK_SIZE = 1 << BLOCK_SHIFT;
+    private static final int PAGE_SHIFT = 7;
+    private static final int PAGE_SIZE = 1 << PAGE_SHIFT;
+    /**
+     * The number of bytes the ring of blocks spans: twice the int range, so
+     * that a full builder fits in it along with the ranges dropped by a
+     * clear that producers were still copying into.
+     */
+    private static final long RING_SPAN = 1L << 32;
+    private static final int PAGE_COUNT = (int) (RING_SPAN >>> (BLOCK_SHIFT + PAGE_SHIFT));
+    private static final int RING_BLOCKS = PAGE_COUNT << PAGE_SHIFT;
+
+    /**
+     * Receives the collected ranges.
+     */
+    interface SegmentSink {
+
+        void accept(byte[] data, int offset, int length);
+    }
+
+    private static final class Block {
+
+        final byte[] data = new byte[BLOCK_SIZE];
+        /**
+         * The number of bytes in this block that producers have finished
+         * copying. Incremented after the copy, so it also publishes the bytes.
+         */
+        final AtomicInteger filled = new AtomicInteger();
+    }
+
+    /**
+     * The next free offset. Producers reserve space by adding to it.
+     */
+    private final AtomicLong reserved = new AtomicLong();
+    private final AtomicReferenceArray<AtomicReferenceArray<Block>> pages = new AtomicReferenceArray<>(PAGE_COUNT);
+    /**
+     * Everything before this offset has been handed to the consumer. Only
+     * written while holding this object's monitor.
+     */
+    private volatile long merged;
+    /**
+     * The bytes reserved before this offset were discarded by
+     * {@link ConcurrentAppendBuffer#discard()}; they are collected as usual,
+     * so their blocks are let go, but not handed to the consumer. Only used
+     * while holding this object's monitor.
+     */
+    private long discardedTo;
+    /**
+     * The length of the builder, with every reserved byte counted, is
+     * <code>reserved - base</code>.
+     */
+    private volatile long base;
+
+    /**
+     * Reserves <code>len</code> bytes.
+     *
+     * @return the offset of the reserved range
+     * @throws IllegalStateException if the builder would grow past the int
+     * range, or the range would reach the slot of a block that a stalled
+     * producer has still not finished
+     */
+    private long reserve(int len) {
+        while (true) {
+            long pos = reserved.get();
+            if (pos + len - base > Integer.MAX_VALUE) {
+                throw new IllegalStateException("Builder Size would exceed " + Integer.MAX_VALUE);
+            }
+            if (pos + len - merged > RING_SPAN) {
+                throw new IllegalStateException("Appends have run " + RING_SPAN + " bytes ahead of an unfinished append");
+            }
+            if (reserved.compareAndSet(pos, pos + len)) {
+                return pos;
+            }
+        }
+    }
+
+    /**
+     * Tells the buffer the length of the builder, counting everything
+     * collected so far. Called by the builder whenever its length changes
+     * other than through this buffer.
+     *
+     * @param length The length of the builder
+     */
+    synchronized void setLength(int length) {
+        base = Math.max(merged, discardedTo) - length;
+    }
+
+    /**
+     * Drops everything reserved so far, including the ranges that producers
+     * are still copying into. Appends that reserve after this call are kept.
+     * The blocks already written are let go at once; the others are let go
+     * by the first drain after their producers finish.
+     */
+    synchronized void discard() {
+        discardedTo = reserved.get();
+        merged = collect(null, discardedTo);
+    }
+
+    /**
+     * Appends bytes without taking any lock.
+     *
+     * @param src The source array
+     * @param off The offset in the source array
+     * @param len The number of bytes to append
+     */
+    void append(byte[] src, int off, int len) {
+        if (len == 0) {
+            return;
+        }
+        long pos = reserve(len);
+        while (len > 0) {
+            Block block = block(pos >>> BLOCK_SHIFT, true);
+            int from = (int) (pos & (BLOCK_SIZE - 1));
+            int n = Math.min(len, BLOCK_SIZE - from);
+            System.arraycopy(src, off, block.data, from, n);
+            block.filled.addAndGet(n);
+            pos += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    /**
+     * Appends a single byte without taking any lock.
+     *
+     * @param data The byte to append
+     */
+    void append(byte data) {
+        long pos = reserve(1);
+        Block block = block(pos >>> BLOCK_SHIFT, true);
+        block.data[(int) (pos & (BLOCK_SIZE - 1))] = data;
+        block.filled.incrementAndGet();
+    }
+
+    /**
+     * @param index The offset of the block, in blocks
+     */
+    private Block block(long index, boolean create) {
+        int ringIndex = (int) (index & (RING_BLOCKS - 1));
+        int pageIndex = ringIndex >>> PAGE_SHIFT;
+        AtomicReferenceArray<Block> page = pages.get(pageIndex);
+        if (page == null) {
+            if (!create) {
+                return null;
+            }
+            pages.compareAndSet(pageIndex, null, new AtomicReferenceArray<>(PAGE_SIZE));
+            page = pages.get(pageIndex);
+        }
+        int slot = ringIndex & (PAGE_SIZE - 1);
+        Block block = page.get(slot);
+        if (block == null && create) {
+            page.compareAndSet(slot, null, new Block());
+            block = page.get(slot);
+        }
+        return block;
+    }
+
+    private void drop(long index) {
+        int ringIndex = (int) (index & (RING_BLOCKS - 1));
+        pages.get(ringIndex >>> PAGE_SHIFT).set(ringIndex & (PAGE_SIZE - 1), null);
+    }
+
+    /**
+     * @return true if nothing is waiting to be collected
+     */
+    boolean isEmpty() {
+        return reserved.get() == merged;
+    }
+
+    /**
+     * Hands every byte that is completely written, and not yet collected, to
+     * the consumer in reservation order. The ranges are handed over in place,
+     * as ranges of the blocks; nothing is copied. Producers only ever write
+     * past the ranges already handed over.
+     *
+     * @param consumer Receives the collected ranges
+     */
+    synchronized void drainTo(SegmentSink consumer) {
+        merged = collect(consumer, Long.MAX_VALUE);
+    }
+
+    /**
+     * Collects the completely written bytes from <code>merged</code> up to
+     * <code>limit</code>, letting go of every block it finishes.
+     *
+     * @param consumer Receives the collected ranges, or null to drop them
+     * @return the offset up to which bytes were collected
+     */
+    private long collect(SegmentSink consumer, long limit) {
+        long pos = merged;
+        while (pos < limit) {
+            long index = pos >>> BLOCK_SHIFT;
+            Block block = block(index, false);
+            if (block == null) {
+                break;
+            }
+            long blockStart = index << BLOCK_SHIFT;
+            int from = (int) (pos - blockStart);
+            int to = block.filled.get();
+            if (to < BLOCK_SIZE) {
+                /*
+                 * Read after `filled`: every completed byte counted in `filled`
+                 * was reserved before this read, so if the counts match, every
+                 * reserved byte in the block is written.
+                 */
+                int reservedInBlock = (int) Math.min(reserved.get() - blockStart, BLOCK_SIZE);
+                if (to != reservedInBlock) {
+                    break;
+                }
+            }
+            to = (int) Math.min(to, limit - blockStart);
+            if (to <= from) {
+                break;
+            }
+            if (consumer != null) {
+                hand(consumer, block.data, blockStart, from, to);
+            }
+            pos = blockStart + to;
+            if (to < BLOCK_SIZE) {
+                break;
+            }
+            drop(index);
+        }
+        return pos;
+    }
+
+    /**
+     * Hands the range <code>from..to</code> of a block to the consumer, less
+     * any part of it that was discarded.
+     */
+    private void hand(SegmentSink consumer, byte[] data, long blockStart, int from, int to) {
+        int start = (int) Math.max(from, Math.min(discardedTo - blockStart, to));
+        if (start < to) {
+            consumer.accept(data, start, to - start);
+        }
+    }
+
+}
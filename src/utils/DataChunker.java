@@ -5,14 +5,16 @@
  */
 package utils;
  
-import java.io.BufferedInputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
 import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
 import java.security.SecureRandom;
+import java.util.Arrays;
 import java.util.Random;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -33,6 +35,11 @@ import java.util.logging.Logger;
  * Each chunk is guaranteed to be of the specified {@link DataChunker#chunkSize}
  * except for the final chunk, as expected. {@link DataChunker#chunkSize}
  *
+ * To pull the chunks one at a time instead, or to process them with
+ * {@link java.util.stream.Stream}, use {@link ChunkSpliterator}. To process
+ * them in parallel and still consume the results in order, use
+ * {@link ParallelDataChunker}.
+ *
  * @author JIBOYE, Oluwagbemiro Olaoluwa <gbenroscience@yahoo.com>
  */
 public abstract class DataChunker {
@@ -44,6 +51,23 @@ public abstract class DataChunker {
 
     private boolean valid;
 
+    /**
+     * The I/O error that stopped the chunking, if any.
+     */
+    private IOException error;
+
+    /**
+     * The array that {@link DataChunker#chunkFound(ByteBuffer, long)} copies
+     * full chunks into; made on first use.
+     */
+    private byte[] chunkArray;
+
+    /**
+     * The most bytes of a file mapped at once. Each mapping is a whole
+     * number of chunks, so no chunk spans two of them.
+     */
+    private static final long MAX_MAPPED_REGION = 1L << 30;
+
     /**
      *
      * @param chunkSize The sizeRatio of each chunk. Each chunk generated is
@@ -56,7 +80,7 @@ public abstract class DataChunker {
      * @param blob The stream whose data is to be broken into chunks
      */
     public DataChunker(int chunkSize, InputStream blob) {
-        this.chunkSize = chunkSize;
+        this.chunkSize = checkChunkSize(chunkSize);
         chunk(blob);
     }
 
@@ -69,7 +93,7 @@ public abstract class DataChunker {
      * @param blob The array whose data is to be broken into chunks
      */
     public DataChunker(int chunkSize, byte[] blob) {
-        this.chunkSize = chunkSize;
+        this.chunkSize = checkChunkSize(chunkSize);
         chunk(blob);
     }
 
@@ -85,14 +109,36 @@ public abstract class DataChunker {
      * @param blob The File whose data is to be broken into chunks.
      */
     public DataChunker(int chunkSize, File blob) {
-        this.chunkSize = chunkSize;
-
-        try (BufferedInputStream stream = new BufferedInputStream(new FileInputStream(blob))) {
-            chunk(stream);
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
+        this(chunkSize, blob, false);
+    }
 
+    /**
+     * Chunks a file through a {@link FileChannel}; no stream buffer copies
+     * the data on the way. The chunks are delivered to
+     * {@link DataChunker#chunkFound(ByteBuffer, long)}.
+     *
+     * You may check the {@link DataChunker#isValid() } method to be sure that
+     * no error occurred during chunking, and
+     * {@link DataChunker#getError()} for the error if one did.
+     *
+     * @param chunkSize The sizeRatio of each chunk. Each chunk generated is
+     * guaranteed to have this sizeRatio, save for the final chunk, which will
+     * have a sizeRatio equal to the remaining number of elements in the main
+     * array.
+     * @param blob The File whose data is to be broken into chunks.
+     * @param mapped If true, the file is mapped into memory and each chunk is
+     * a read-only view of the mapping, so the data is never copied in user
+     * space. Each region of the mapping is unmapped as soon as its last chunk
+     * has been handled, so a chunk must not be kept past the call to
+     * {@link DataChunker#chunkFound(ByteBuffer, long)} that received it; copy
+     * it to keep it. If false, the file is read chunk by chunk into one reused
+     * direct buffer.
+     * @throws IllegalArgumentException if <code>chunkSize</code> is not
+     * positive
+     */
+    public DataChunker(int chunkSize, File blob, boolean mapped) {
+        this.chunkSize = checkChunkSize(chunkSize);
+        chunk(blob, mapped);
     }
 
 
@@ -103,19 +149,16 @@ public abstract class DataChunker {
      * have a sizeRatio equal to the remaining number of elements in the main
      * array.
      *
-     * You may check the {@link DataChunker#isValid() } method to be sure that
-     * no error occurred during chunking.
-     * @param blob The File whose data is to be broken into chunks.
+     * The chunks are views of the buffer, delivered to
+     * {@link DataChunker#chunkFound(ByteBuffer, long)}; nothing is copied
+     * unless that method copies it.
+     *
+     * @param blob The buffer whose remaining bytes are to be broken into
+     * chunks. Its position and limit are left alone.
      */
     public DataChunker(int chunkSize, ByteBuffer blob) {
-        this.chunkSize = chunkSize;
-
-        try {
-            chunk(blob);
-        } catch (Exception e) {
-            e.printStackTrace();
-        }
-
+        this.chunkSize = checkChunkSize(chunkSize);
+        chunk(blob);
     }
     /**
      *
@@ -131,11 +174,25 @@ public abstract class DataChunker {
      * text chunks(substrings), then look at
      */
     public DataChunker(int chunkSize, String blob) {
-        this.chunkSize = chunkSize;
+        this.chunkSize = checkChunkSize(chunkSize);
         chunk(blob);
 
     }
 
+    /**
+     * Rejects a chunk size that could never make progress, before any
+     * chunking starts.
+     *
+     * @param chunkSize The requested chunk size
+     * @return the chunk size
+     */
+    private static int checkChunkSize(int chunkSize) {
+        if (chunkSize <= 0) {
+            throw new IllegalArgumentException("chunkSize must be > 0");
+        }
+        return chunkSize;
+    }
+
     static void checkBounds(int off, int len, int size) { // package-private
         if ((off | len | (off + len) | (size - (off + len))) < 0)
             throw new IndexOutOfBoundsException();
@@ -145,8 +202,31 @@ public abstract class DataChunker {
         return valid;
     }
 
+    /**
+     * Only the I/O errors of the stream or file being read are reported here,
+     * with {@link DataChunker#isValid()} false. An exception thrown by
+     * {@link DataChunker#chunkFound(byte[], long)},
+     * {@link DataChunker#chunkFound(ByteBuffer, long)} or
+     * {@link DataChunker#chunksExhausted(long)} is not caught: it propagates
+     * out of the constructor unchanged, whatever the source.
+     *
+     * @return the I/O error that stopped the chunking of a stream or file, or
+     * null if there was none
+     */
+    public IOException getError() {
+        return error;
+    }
 
 
+
+    /**
+     * Reads the stream straight into one chunk array, which is handed to
+     * {@link DataChunker#chunkFound(byte[], long)} each time it fills up and
+     * then reused; only a short final chunk gets an array of its own. So the
+     * memory used is one chunk, however long the stream.
+     *
+     * @param blob The stream to read. It is closed at the end.
+     */
     private void chunk(InputStream blob) {
         this.valid = false;
 
@@ -155,78 +235,33 @@ public abstract class DataChunker {
             //bytes read at that instant from the InputStream
             int readBytes;
             //sum of all bytes read from the InputStream
-            int totalBytesRead = 0;
-            // int processedBytes = 0;//bytes fed to the chunkFound method.
+            long totalBytesRead = 0;
             byte[] chunk = new byte[chunkSize];
 
             //Marks the current position in the chunk array where new data should be copied into.
             int cursor = 0;
-            /**
-             * Fresh data from the InputStream is always read into this array.
-             * Only `readBytes` elements in it are valid data from the stream.
-             */
-            byte[] tempChunk = new byte[chunkSize];
-            /**
-             * Holds the size of bytes that have been read from the stream and
-             * need to be processed in chunks.
-             */
-            int readBuffer = 0;
-
-            while ((readBytes = blob.read(tempChunk, 0, chunkSize)) != -1) {
-
-                totalBytesRead += readBytes;
-
-                readBuffer += readBytes;
-
-                if (readBuffer < chunkSize) {
 
-                    System.arraycopy(tempChunk, 0, chunk, cursor, readBytes);
+            while ((readBytes = blob.read(chunk, cursor, chunkSize - cursor)) != -1) {
 
-                    cursor = readBuffer;
-                } else {
-
-                    int remainder = readBuffer % chunkSize;
-                    int sizeToProcess = readBuffer - remainder;
-
-                    byte[] bigChunk = new byte[sizeToProcess];
-                    System.arraycopy(chunk, 0, bigChunk, 0, cursor);//number of valid bytes in chunk array is equal to cursor.
-                    System.arraycopy(tempChunk, 0, bigChunk, cursor, sizeToProcess - cursor);
-
-                    chunk = new byte[chunkSize];
-
-                    System.arraycopy(tempChunk, sizeToProcess - cursor, chunk, 0, remainder);
-
-                    readBuffer = remainder;//Account for unread items.
-                    cursor = remainder;
-                    final DataChunker chunkParent = this;
-
-                    final int allBytesRead = totalBytesRead;
-                    DataChunker chunker = new DataChunker(chunkSize, bigChunk) {
-                        @Override
-                        public void chunkFound(byte[] foundChunk, long bytesProcessed) {
-                            chunkParent.chunkFound(foundChunk, allBytesRead);
-                        }
-
-                        @Override
-                        public void chunksExhausted(long bytesProcessed) {
-
-                        }
-                    };
+                totalBytesRead += readBytes;
+                cursor += readBytes;
 
-                    bigChunk = null;
+                if (cursor == chunkSize) {
+                    chunkFound(chunk, totalBytesRead);
+                    cursor = 0;
                 }
 
             }
 
-            if (readBuffer > 0) {
-                byte[] finalChunk = new byte[cursor];
-                System.arraycopy(chunk, 0, finalChunk, 0, cursor);
-                chunkFound(finalChunk, totalBytesRead);
+            if (cursor > 0) {
+                chunkFound(Arrays.copyOf(chunk, cursor), totalBytesRead);
             }
             chunksExhausted(totalBytesRead);
             this.valid = true;
         } catch (IOException ex) {
             this.valid = false;
+            this.error = ex;
+            Logger.getLogger(DataChunker.class.getName()).log(Level.SEVERE, null, ex);
         } finally {
             if (blob != null) {
                 try {
@@ -239,75 +274,100 @@ public abstract class DataChunker {
     }
 
     /**
-     * Upgraded chunk method for delivering byte arrays in chunks.
-     * 1. Uses System.arraycopy to copy data.
-     * 2. Does not do byte by byte copy in Java again, instead does it using 1. above.
-     * 3. Does not create new chunking array instances except for the last chunk, if the size of the last
-     * chunk is less than the chunk size. So it creates one array for the chunks and reuses it
-     * throughout the whole copying process.
-     * Speed gains will be high.
-     * @param blob The array to copy.
+     * Chunks a file through its channel, either by mapping it a region at a
+     * time or by reading it into one reused direct buffer.
+     *
+     * @param blob The file to read
+     * @param mapped If true, the file is mapped
      */
-    private void chunk(byte[] blob) {
+    private void chunk(File blob, boolean mapped) {
         this.valid = false;
-        try {
-            // 0-8191,8192-2(8192)-1,2(8192)-3(8192)-1
 
-            int sentBytes = 0;
-            int len = blob.length;
-
-            int cursor = 0;
-            byte[] chunk = new byte[chunkSize <= len ? chunkSize : len];
-
-            while(sentBytes < len){
-
-                long remainingBytes = len - sentBytes;
-                if(remainingBytes >= chunkSize){
-                    System.arraycopy(blob , sentBytes , chunk , 0 ,chunkSize);
-                    sentBytes += chunkSize;
-                    chunkFound(chunk, sentBytes);
-                }else{
-                    chunk = new byte[(int) remainingBytes];
-                    System.arraycopy(blob , sentBytes , chunk , 0 , (int) remainingBytes);
-                    sentBytes = len;
-                    chunkFound(chunk, sentBytes);
+        try (FileChannel channel = FileChannel.open(blob.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            long position = 0;
+            if (mapped) {
+                long region = Math.max(chunkSize, MAX_MAPPED_REGION / chunkSize * chunkSize);
+                while (position < size) {
+                    long len = Math.min(region, size - position);
+                    MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, position, len);
+                    try {
+                        for (long off = 0; off < len; off += chunkSize) {
+                            int n = (int) Math.min(chunkSize, len - off);
+                            chunkFound(map.slice((int) off, n), position + off + n);
+                        }
+                    } finally {
+                        //Unmapped now rather than whenever the collector gets to it.
+                        DirectByteArrayBuilder.release(map);
+                    }
+                    position += len;
                 }
-            }
-            chunksExhausted(sentBytes);
-           
-            /*
-            for (int i = 0; i < len; i++) {
-                chunk[cursor++] = blob[i];
-                sentBytes++;
-                if (cursor == chunk.length) {
-                    reset:
-                    {
-                        chunkFound(chunk, sentBytes);
-                        cursor = 0;
-                        chunk = new byte[chunkSize <= len - sentBytes ? chunkSize : len - sentBytes];
+            } else {
+                ByteBuffer chunk = ByteBuffer.allocateDirect(chunkSize);
+                boolean eof = false;
+                while (!eof) {
+                    chunk.clear();
+                    while (chunk.hasRemaining()) {
+                        if (channel.read(chunk) < 0) {
+                            eof = true;
+                            break;
+                        }
+                    }
+                    if (chunk.position() > 0) {
+                        position += chunk.position();
+                        chunk.flip();
+                        chunkFound(chunk, position);
                     }
                 }
             }
-            chunksExhausted(sentBytes);
-            */
+            chunksExhausted(position);
             this.valid = true;
-        } catch (Exception ex) {
-            ex.printStackTrace();
+        } catch (IOException ex) {
+            this.valid = false;
+            this.error = ex;
+            Logger.getLogger(DataChunker.class.getName()).log(Level.SEVERE, null, ex);
         }
-
     }
 
-
-    private void chunk(ByteBuffer buffer){
+    /**
+     * Upgraded chunk method for delivering byte arrays in chunks.
+     * 1. Uses System.arraycopy to copy data.
+     * 2. Does not do byte by byte copy in Java again, instead does it using 1. above.
+     * 3. Does not create new chunking array instances except for the last chunk, if the size of the last
+     * chunk is less than the chunk size. So it creates one array for the chunks and reuses it
+     * throughout the whole copying process.
+     * Speed gains will be high.
+     * @param blob The array to copy.
+     */
+    private void chunk(byte[] blob) {
         this.valid = false;
-        int len = buffer.remaining();
+        // 0-8191,8192-2(8192)-1,2(8192)-3(8192)-1
 
-        int cursor = 0;
         int sentBytes = 0;
+        int len = blob.length;
+
+        int cursor = 0;
         byte[] chunk = new byte[chunkSize <= len ? chunkSize : len];
-        for(int i = 0; i < len; i++){
 
-            chunk[cursor++] = buffer.get(i);
+        while(sentBytes < len){
+
+            long remainingBytes = len - sentBytes;
+            if(remainingBytes >= chunkSize){
+                System.arraycopy(blob , sentBytes , chunk , 0 ,chunkSize);
+                sentBytes += chunkSize;
+                chunkFound(chunk, sentBytes);
+            }else{
+                chunk = new byte[(int) remainingBytes];
+                System.arraycopy(blob , sentBytes , chunk , 0 , (int) remainingBytes);
+                sentBytes = len;
+                chunkFound(chunk, sentBytes);
+            }
+        }
+        chunksExhausted(sentBytes);
+       
+        /*
+        for (int i = 0; i < len; i++) {
+            chunk[cursor++] = blob[i];
             sentBytes++;
             if (cursor == chunk.length) {
                 reset:
@@ -319,6 +379,29 @@ public abstract class DataChunker {
             }
         }
         chunksExhausted(sentBytes);
+        */
+        this.valid = true;
+
+    }
+
+
+    /**
+     * Hands out each chunk as a slice of the buffer, from its position on.
+     *
+     * @param buffer The buffer to chunk
+     */
+    private void chunk(ByteBuffer buffer) {
+        this.valid = false;
+        int start = buffer.position();
+        int len = buffer.remaining();
+        int sentBytes = 0;
+        while (sentBytes < len) {
+            int n = Math.min(chunkSize, len - sentBytes);
+            ByteBuffer chunk = buffer.slice(start + sentBytes, n);
+            sentBytes += n;
+            chunkFound(chunk, sentBytes);
+        }
+        chunksExhausted(sentBytes);
 
         this.valid = true;
     }
@@ -355,12 +438,41 @@ public abstract class DataChunker {
     /**
      * Called when a chunked array.
      *
-     * @param foundChunk The current chunk.
+     * @param foundChunk The current chunk. The array is reused for the next
+     * chunk once this returns, so copy it to keep it.
      * @param bytesProcessed The total number of bytes processed including the
      * current chunk.
      */
     public abstract void chunkFound(byte[] foundChunk, long bytesProcessed);
 
+    /**
+     * Called with each chunk of a file or a buffer. The default copies the
+     * chunk in bulk into an array that is reused from chunk to chunk, and
+     * passes that to {@link DataChunker#chunkFound(byte[], long)}. Override it
+     * to use the chunk where it lies, without the copy; for example, to write
+     * it to a channel.
+     *
+     * @param foundChunk The current chunk, from its position to its limit.
+     * It is only valid until this returns; a chunk of a mapped file is
+     * unmapped soon after, and reading it then may crash the JVM.
+     * @param bytesProcessed The total number of bytes processed including the
+     * current chunk.
+     */
+    public void chunkFound(ByteBuffer foundChunk, long bytesProcessed) {
+        int len = foundChunk.remaining();
+        byte[] chunk;
+        if (len == chunkSize) {
+            if (chunkArray == null) {
+                chunkArray = new byte[chunkSize];
+            }
+            chunk = chunkArray;
+        } else {
+            chunk = new byte[len];
+        }
+        foundChunk.get(foundChunk.position(), chunk, 0, len);
+        chunkFound(chunk, bytesProcessed);
+    }
+
     /**
      * Fired when all chunks have been detected.
      *
@@ -0,0 +1,523 @@
+package utils;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * An off-heap counterpart of {@link ByteArrayBuilder}. The data is held in
+ * fixed-size blocks of direct memory, so a payload built here can be handed to
+ * a socket or file channel through {@link DirectByteArrayBuilder#asByteBuffers()}
+ * without ever being copied onto the heap.
+ *
+ * Blocks the builder no longer needs are freed at once, except those that
+ * {@link DirectByteArrayBuilder#asByteBuffers()} has handed out views of: they
+ * are left to the garbage collector, so a view that outlives its data never
+ * points at freed memory.
+ *
+ * The append methods take the same values as those of
+ * {@link ByteArrayBuilder}, and write the same bytes.
+ *
+ * @author GBEMIRO JIBOYE <gbenroscience@gmail.com>
+ */
+public class DirectByteArrayBuilder implements AutoCloseable {
+
+    /**
+     * The block size used by {@link DirectByteArrayBuilder#DirectByteArrayBuilder()}
+     */
+    public static final int DEFAULT_BLOCK_SIZE = 64 * 1024;
+
+    /**
+     * sun.misc.Unsafe#invokeCleaner(ByteBuffer), if the running JDK exposes
+     * it. Without it, released blocks are reclaimed by the garbage collector.
+     */
+    private static final MethodHandle CLEANER = findCleaner();
+
+    private final int blockSize;
+    /**
+     * log2(blockSize); maps an index to its block with a shift.
+     */
+    private final int blockShift;
+    private ByteBuffer[] blocks = new ByteBuffer[8];
+    private int blockCount;
+    private int size;
+    private boolean closed;
+    /**
+     * The blocks below this index may have views outside the builder, so
+     * they are never freed explicitly.
+     */
+    private int exposedBlocks;
+
+    public DirectByteArrayBuilder() {
+        this(DEFAULT_BLOCK_SIZE);
+    }
+
+    /**
+     *
+     * @param blockSize The size of each block of direct memory. It is rounded
+     * up to a power of two.
+     */
+    public DirectByteArrayBuilder(int blockSize) {
+        if (blockSize <= 0) {
+            throw new IllegalArgumentException("blockSize must be > 0");
+        }
+        if (blockSize > 1 << 30) {
+            throw new IllegalArgumentException("blockSize must be <= " + (1 << 30));
+        }
+        this.blockShift = 32 - Integer.numberOfLeadingZeros(blockSize - 1);
+        this.blockSize = 1 << blockShift;
+    }
+
+    private static MethodHandle findCleaner() {
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Field f = unsafeClass.getDeclaredField("theUnsafe");
+            f.setAccessible(true);
+            Object unsafe = f.get(null);
+            return MethodHandles.lookup()
+                    .findVirtual(unsafeClass, "invokeCleaner", MethodType.methodType(void.class, ByteBuffer.class))
+                    .bindTo(unsafe);
+        } catch (Throwable t) {
+            return null;
+        }
+    }
+
+    /**
+     * Frees the memory of a direct or mapped buffer right away, when the JDK
+     * allows it. The buffer, and every view of it, must not be used again.
+     *
+     * @param block A buffer obtained from allocateDirect or FileChannel.map
+     */
+    static void release(ByteBuffer block) {
+        if (CLEANER == null) {
+            return;
+        }
+        try {
+            CLEANER.invokeExact(block);
+        } catch (Throwable t) {
+            //Left for the garbage collector.
+        }
+    }
+
+    private void ensureOpen() {
+        if (closed) {
+            throw new IllegalStateException("This builder has been closed");
+        }
+    }
+
+    /**
+     * Makes sure there are enough blocks to hold <code>capacity</code> bytes.
+     */
+    private void ensureCapacity(long capacity) {
+        if (capacity > Integer.MAX_VALUE) {
+            throw new OutOfMemoryError("Builder Size would exceed " + Integer.MAX_VALUE);
+        }
+        while ((long) blockCount << blockShift < capacity) {
+            if (blockCount == blocks.length) {
+                blocks = Arrays.copyOf(blocks, blockCount * 2);
+            }
+            blocks[blockCount++] = ByteBuffer.allocateDirect(blockSize);
+        }
+    }
+
+    /**
+     * Copies bytes from the heap into the blocks.
+     */
+    private void write(int index, byte[] src, int off, int len) {
+        while (len > 0) {
+            int from = index & (blockSize - 1);
+            int n = Math.min(len, blockSize - from);
+            blocks[index >>> blockShift].put(from, src, off, n);
+            index += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    /**
+     * Copies bytes out of the blocks onto the heap.
+     */
+    private void read(int index, byte[] dst, int off, int len) {
+        while (len > 0) {
+            int from = index & (blockSize - 1);
+            int n = Math.min(len, blockSize - from);
+            blocks[index >>> blockShift].get(from, dst, off, n);
+            index += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    /**
+     * Moves a range of bytes within the builder. Overlapping ranges are
+     * handled: a move to a higher index copies from the end backwards, and
+     * a move to a lower index copies from the start forwards.
+     */
+    private void move(int from, int to, int len) {
+        if (len == 0 || from == to) {
+            return;
+        }
+        if (to > from) {
+            int srcEnd = from + len;
+            int dstEnd = to + len;
+            while (len > 0) {
+                int srcRoom = ((srcEnd - 1) & (blockSize - 1)) + 1;
+                int dstRoom = ((dstEnd - 1) & (blockSize - 1)) + 1;
+                int n = Math.min(len, Math.min(srcRoom, dstRoom));
+                srcEnd -= n;
+                dstEnd -= n;
+                blocks[dstEnd >>> blockShift].put(dstEnd & (blockSize - 1),
+                        blocks[srcEnd >>> blockShift], srcEnd & (blockSize - 1), n);
+                len -= n;
+            }
+        } else {
+            while (len > 0) {
+                int srcRoom = blockSize - (from & (blockSize - 1));
+                int dstRoom = blockSize - (to & (blockSize - 1));
+                int n = Math.min(len, Math.min(srcRoom, dstRoom));
+                blocks[to >>> blockShift].put(to & (blockSize - 1),
+                        blocks[from >>> blockShift], from & (blockSize - 1), n);
+                from += n;
+                to += n;
+                len -= n;
+            }
+        }
+    }
+
+    /**
+     * Drops the blocks that are no longer needed to hold the data. Those never
+     * handed out are freed at once; the others are left to the garbage
+     * collector.
+     */
+    private void trimBlocks() {
+        int needed = (int) (((long) size + blockSize - 1) >>> blockShift);
+        while (blockCount > needed) {
+            blockCount--;
+            if (blockCount >= exposedBlocks) {
+                release(blocks[blockCount]);
+            }
+            blocks[blockCount] = null;
+        }
+        exposedBlocks = Math.min(exposedBlocks, blockCount);
+    }
+
+    /**
+     * Appends the low <code>n</code> bytes of the value.
+     */
+    private DirectByteArrayBuilder appendValue(long value, int n, boolean bigEndian) {
+        ensureOpen();
+        ensureCapacity((long) size + n);
+        for (int i = 0; i < n; i++) {
+            int shift = bigEndian ? (n - 1 - i) << 3 : i << 3;
+            blocks[size >>> blockShift].put(size & (blockSize - 1), (byte) (value >>> shift));
+            size++;
+        }
+        return this;
+    }
+
+    /**
+     *
+     * @param data A byte array to append to the {@link DirectByteArrayBuilder}
+     * @return the instance of this builder object to facilitate chaining calls
+     */
+    public synchronized DirectByteArrayBuilder append(byte[] data) {
+        ensureOpen();
+        ensureCapacity((long) size + data.length);
+        write(size, data, 0, data.length);
+        size += data.length;
+        return this;
+    }
+
+    /**
+     * Appends the portion of this byte array starting from
+     * <code>fromIndex</code> up to and including <code>toIndex</code> to this
+     * builder.
+     *
+     * @param data A byte array to append to the {@link DirectByteArrayBuilder}
+     * @param fromIndex index to start copying from
+     * @param toIndex The final index to copy
+     * @return the instance of this builder object to facilitate chaining calls
+     */
+    public synchronized DirectByteArrayBuilder append(byte[] data, int fromIndex, int toIndex) {
+        if (fromIndex < 0) {
+            throw new IllegalArgumentException("fromIndex must be >= 0");
+        }
+        if (fromIndex >= data.length) {
+            throw new IllegalArgumentException("fromIndex must be < " + data.length);
+        }
+        if (fromIndex > toIndex) {
+            throw new IllegalArgumentException("fromIndex must be <= toIndex");
+        }
+        if (toIndex >= data.length) {
+            throw new IllegalArgumentException("toIndex must be < " + data.length);
+        }
+        ensureOpen();
+        int len = toIndex - fromIndex + 1;
+        ensureCapacity((long) size + len);
+        write(size, data, fromIndex, len);
+        size += len;
+        return this;
+    }
+
+    /**
+     * The heap array cannot become part of an off-heap builder, so unlike
+     * {@link ByteArrayBuilder#append(byte[], boolean)} it is always copied;
+     * <code>last</code> has no effect.
+     *
+     * @param data A byte array to append to the {@link DirectByteArrayBuilder}
+     * @param last Ignored
+     * @return the instance of this builder object to facilitate chaining calls
+     */
+    public DirectByteArrayBuilder append(byte[] data, boolean last) {
+        return append(data);
+    }
+
+    /**
+     *
+     * @param number The long whose eight little-endian bytes are appended, as
+     * {@link ByteArrayBuilder#append(long)} does
+     * @return the instance of this builder object to facilitate chaining calls
+     */
+    public synchronized DirectByteArrayBuilder append(long number) {
+        return appendValue(number, 8, false);
+    }
+
+    /**
+     *
+     * @param number The int whose four big-endian bytes are appended
+     * @return the instance of this builder object to facilitate chaining calls
+     */
+    public synchronized DirectByteArrayBuilder append(int number) {
+        return appendValue(number, 4, true);
+    }
+
+    /**
+     *
+     * @param number The short, widened and appended as the four big-endian
+     * bytes of an int, as {@link ByteArrayBuilder#append(short)} does
+     * @return the instance of this builder object to facilitate chaining calls
+     */
+    public synchronized DirectByteArrayBuilder append(short number) {
+        return appendValue(number, 4, true);
+    }
+
+    public synchronized DirectByteArrayBuilder append(byte data) {
+        ensureOpen();
+        ensureCapacity((long) size + 1);
+        blocks[size >>> blockShift].put(size & (blockSize - 1), data);
+        size++;
+        return this;
+    }
+
+    /**
+     * Appends the remaining bytes of the buffer. The buffer's position is
+     * advanced to its limit.
+     *
+     * @param data The buffer whose remaining bytes are to be appended
+     * @return the instance of this builder object to facilitate chaining calls
+     */
+    public synchronized DirectByteArrayBuilder append(ByteBuffer data) {
+        ensureOpen();
+        int len = data.remaining();
+        ensureCapacity((long) size + len);
+        int pos = data.position();
+        while (len > 0) {
+            int from = size & (blockSize - 1);
+            int n = Math.min(len, blockSize - from);
+            blocks[size >>> blockShift].put(from, data, pos, n);
+            pos += n;
+            size += n;
+            len -= n;
+        }
+        data.position(pos);
+        return this;
+    }
+
+    /**
+     * Always slower than {@link DirectByteArrayBuilder#append(byte[])}, as
+     * all the data is moved along to make room.
+     *
+     * @param data The data to prepend
+     * @return the original object with the fresh data prepended to it.
+     */
+    public DirectByteArrayBuilder prepend(byte[] data) {
+        return insert(0, data);
+    }
+
+    /**
+     * Inserts a byte array at the given index of the
+     * {@link DirectByteArrayBuilder}. The data after the index is moved along
+     * in place; no intermediate copy is made.
+     *
+     * @param index The index in the builder at which to insert the byte array
+     * supplied
+     * @param data A byte array to insert at the given index
+     * @return the original {@link DirectByteArrayBuilder}, now modified
+     */
+    public synchronized DirectByteArrayBuilder insert(int index, byte[] data) {
+        ensureOpen();
+        if (index < 0 || index > size) {
+            throw new ArrayIndexOutOfBoundsException("Input Index: " + index + " > " + size);
+        }
+        ensureCapacity((long) size + data.length);
+        move(index, index + data.length, size - index);
+        write(index, data, 0, data.length);
+        size += data.length;
+        return this;
+    }
+
+    /**
+     *
+     * @param index The index whose byte we wish to return
+     * @return the byte at that index
+     */
+    public synchronized byte get(int index) {
+        ensureOpen();
+        if (index < 0) {
+            throw new ArrayIndexOutOfBoundsException("Input Index cannot be negative.");
+        }
+        if (index >= size) {
+            throw new ArrayIndexOutOfBoundsException("Input Index (" + index + ") >= Builder Size(" + size + ")");
+        }
+        return blocks[index >>> blockShift].get(index & (blockSize - 1));
+    }
+
+    /**
+     *
+     * @param startIndex The index from which we wish to copy some data
+     * @param numberOfItems The number of items to copy
+     * @return a heap copy of the requested range
+     */
+    public synchronized byte[] get(int startIndex, int numberOfItems) {
+        ensureOpen();
+        if (startIndex < 0 || numberOfItems < 0) {
+            throw new ArrayIndexOutOfBoundsException("Input Index cannot be negative.");
+        }
+        if (startIndex + numberOfItems > size) {
+            throw new ArrayIndexOutOfBoundsException("Input Index (" + startIndex + ") + Input Length >= Builder Size(" + size + ") Space not enough!");
+        }
+        byte[] data = new byte[numberOfItems];
+        read(startIndex, data, 0, numberOfItems);
+        return data;
+    }
+
+    /**
+     *
+     * @param index The index whose byte we wish to update
+     * @param number The data to set at the specified index.
+     */
+    public synchronized void set(int index, byte number) {
+        ensureOpen();
+        if (index < 0) {
+            throw new ArrayIndexOutOfBoundsException("Input Index cannot be negative.");
+        }
+        if (index >= size) {
+            throw new ArrayIndexOutOfBoundsException("Input Index (" + index + ") >= Builder Size(" + size + ")");
+        }
+        blocks[index >>> blockShift].put(index & (blockSize - 1), number);
+    }
+
+    /**
+     * Updates the data over a range of the {@link DirectByteArrayBuilder}
+     *
+     * @param startIndex The index where we wish to set some data
+     * @param data The data to set at the specified index.
+     * @return the original {@link DirectByteArrayBuilder}, now modified
+     */
+    public synchronized DirectByteArrayBuilder set(int startIndex, byte[] data) {
+        ensureOpen();
+        if (startIndex < 0) {
+            throw new ArrayIndexOutOfBoundsException("Input Index cannot be negative.");
+        }
+        if (startIndex + data.length > size) {
+            throw new ArrayIndexOutOfBoundsException("Input Index (" + startIndex + ") + Input Length >= Builder Size(" + size + ") Space not enough!");
+        }
+        write(startIndex, data, 0, data.length);
+        return this;
+    }
+
+    /**
+     *
+     * @param start The start index
+     * @param numberOfItems The number of items to remove
+     * @return the original {@link DirectByteArrayBuilder}, now modified
+     */
+    public synchronized DirectByteArrayBuilder remove(int start, int numberOfItems) {
+        ensureOpen();
+        if (start < 0 || numberOfItems < 0) {
+            throw new ArrayIndexOutOfBoundsException("Input Index cannot be negative.");
+        }
+        if (start + numberOfItems > size) {
+            throw new ArrayIndexOutOfBoundsException("End Index (" + (start + numberOfItems - 1) + ") >= Builder Size(" + size + ") is an out-of-bounds indexing error!");
+        }
+        move(start + numberOfItems, start, size - start - numberOfItems);
+        size -= numberOfItems;
+        trimBlocks();
+        return this;
+    }
+
+    public synchronized int length() {
+        return size;
+    }
+
+    /**
+     *
+     * @return a heap copy of the builder data. Prefer
+     * {@link DirectByteArrayBuilder#asByteBuffers()} when the data is headed
+     * for a channel.
+     */
+    public synchronized byte[] getBytes() {
+        ensureOpen();
+        byte[] data = new byte[size];
+        read(0, data, 0, size);
+        return data;
+    }
+
+    /**
+     * Hands out the data as read-only views over the blocks, in order. No
+     * bytes are copied, so the array can go straight to
+     * {@link java.nio.channels.GatheringByteChannel#write(ByteBuffer[])}. The
+     * views show the data as it is until the builder is next modified,
+     * cleared or closed; after that they may show stale bytes, but stay safe
+     * to read, as the blocks under them are never freed explicitly.
+     *
+     * @return one view per block that holds data
+     */
+    public synchronized ByteBuffer[] asByteBuffers() {
+        ensureOpen();
+        int count = (int) (((long) size + blockSize - 1) >>> blockShift);
+        ByteBuffer[] views = new ByteBuffer[count];
+        exposedBlocks = Math.max(exposedBlocks, count);
+        for (int i = 0; i < count; i++) {
+            int len = i == count - 1 ? size - (i << blockShift) : blockSize;
+            views[i] = blocks[i].slice(0, len).asReadOnlyBuffer();
+        }
+        return views;
+    }
+
+    /**
+     * Empties the builder and lets go of its blocks. The builder remains
+     * usable.
+     */
+    public synchronized void clear() {
+        size = 0;
+        trimBlocks();
+    }
+
+    /**
+     * Lets go of all the direct memory held by this builder. Further use of
+     * the builder is an error.
+     */
+    @Override
+    public synchronized void close() {
+        if (closed) {
+            return;
+        }
+        clear();
+        closed = true;
+    }
+
+}
@@ -0,0 +1,61 @@
+package utils;
+
+/**
+ * Decides the size of each new tail array of a {@link ByteArrayBuilder}, the
+ * array that small appends are copied into. Arrays appended by reference are
+ * not affected.
+ *
+ * @author GBEMIRO JIBOYE <gbenroscience@gmail.com>
+ * @see ByteArrayBuilder#growthPolicy(GrowthPolicy)
+ */
+@FunctionalInterface
+public interface GrowthPolicy {
+
+    /**
+     * The default: each new tail is an eighth of the builder's size, between
+     * 256 bytes and 1 MB, so the number of arrays grows slowly with the size
+     * while no single allocation gets large.
+     */
+    GrowthPolicy PROPORTIONAL = (size, previous, minimum)
+            -> Math.max(minimum, Math.min(Math.max(256, size >>> 3), 1 << 20));
+
+    /**
+     * Each new tail is twice the size of the one before, from 256 bytes up to
+     * 1 MB.
+     */
+    GrowthPolicy DOUBLING = (size, previous, minimum)
+            -> Math.max(minimum, Math.min(Math.max(256, previous << 1), 1 << 20));
+
+    /**
+     * Each new tail is exactly as big as the write that needs it. Suits
+     * builders fed by a few large writes; each small write then allocates
+     * its own array, so it is best combined with
+     * {@link ByteArrayBuilder#ensureCapacity(int)}.
+     */
+    GrowthPolicy EXACT = (size, previous, minimum) -> minimum;
+
+    /**
+     *
+     * @param segmentSize The size of every tail array
+     * @return a policy whose tails all have the given size, or the size of a
+     * write that does not fit in one
+     */
+    static GrowthPolicy fixedSegment(int segmentSize) {
+        if (segmentSize <= 0) {
+            throw new IllegalArgumentException("segmentSize must be > 0");
+        }
+        return (size, previous, minimum) -> Math.max(minimum, segmentSize);
+    }
+
+    /**
+     *
+     * @param size The number of bytes in the builder
+     * @param previous The size of the current tail array, or 0 if there is
+     * none yet
+     * @param minimum The number of bytes the write needs
+     * @return the size of the new tail array. A value below
+     * <code>minimum</code> is raised to it.
+     */
+    int capacity(int size, int previous, int minimum);
+
+}
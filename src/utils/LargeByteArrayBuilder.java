@@ -0,0 +1,332 @@
+package utils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+
+/**
+ * A heap builder for payloads past the 2 GB limit of a single array. The data
+ * is held in fixed-size blocks whose size is a power of two, and every
+ * position is a <code>long</code>: a position maps to its block with a shift
+ * and to its place in the block with a mask.
+ *
+ * Bulk reads and writes check their range once and then copy block by block
+ * with {@link System#arraycopy(Object, int, Object, int, int)}; no byte is
+ * bounds-checked on its own.
+ *
+ * @author GBEMIRO JIBOYE <gbenroscience@gmail.com>
+ */
+public class LargeByteArrayBuilder implements AutoCloseable {
+
+    /**
+     * The block size used by
+     * {@link LargeByteArrayBuilder#LargeByteArrayBuilder()}
+     */
+    public static final int DEFAULT_BLOCK_SIZE = 1 << 20;
+
+    private final int blockSize;
+    /**
+     * log2(blockSize); maps a position to its block with a shift.
+     */
+    private final int blockShift;
+    private final int blockMask;
+    private byte[][] blocks = new byte[8][];
+    private int blockCount;
+    private long size;
+
+    public LargeByteArrayBuilder() {
+        this(DEFAULT_BLOCK_SIZE);
+    }
+
+    /**
+     *
+     * @param blockSize The size of each block. It is rounded up to a power of
+     * two.
+     */
+    public LargeByteArrayBuilder(int blockSize) {
+        if (blockSize <= 0) {
+            throw new IllegalArgumentException("blockSize must be > 0");
+        }
+        if (blockSize > 1 << 30) {
+            throw new IllegalArgumentException("blockSize must be <= " + (1 << 30));
+        }
+        this.blockShift = 32 - Integer.numberOfLeadingZeros(blockSize - 1);
+        this.blockSize = 1 << blockShift;
+        this.blockMask = this.blockSize - 1;
+    }
+
+    /**
+     * Makes sure there are enough blocks to hold <code>capacity</code> bytes.
+     */
+    private void ensureCapacity(long capacity) {
+        while ((long) blockCount << blockShift < capacity) {
+            if (blockCount == blocks.length) {
+                if (blockCount == Integer.MAX_VALUE - 8) {
+                    throw new OutOfMemoryError("Builder cannot hold more than " + blockCount + " blocks");
+                }
+                blocks = Arrays.copyOf(blocks, (int) Math.min((long) blockCount * 2, Integer.MAX_VALUE - 8));
+            }
+            blocks[blockCount++] = new byte[blockSize];
+        }
+    }
+
+    private void checkRange(long start, long len) {
+        if (start < 0 || len < 0) {
+            throw new IndexOutOfBoundsException("Input Index cannot be negative.");
+        }
+        if (start + len > size) {
+            throw new IndexOutOfBoundsException("Input Index (" + start + ") + Input Length >= Builder Size(" + size + ")");
+        }
+    }
+
+    /**
+     * Copies bytes into the blocks.
+     */
+    private void write(long index, byte[] src, int off, int len) {
+        while (len > 0) {
+            int from = (int) index & blockMask;
+            int n = Math.min(len, blockSize - from);
+            System.arraycopy(src, off, blocks[(int) (index >>> blockShift)], from, n);
+            index += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    /**
+     * Copies bytes out of the blocks.
+     */
+    private void read(long index, byte[] dst, int off, int len) {
+        while (len > 0) {
+            int from = (int) index & blockMask;
+            int n = Math.min(len, blockSize - from);
+            System.arraycopy(blocks[(int) (index >>> blockShift)], from, dst, off, n);
+            index += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    /**
+     *
+     * @param data A byte array to append to the {@link LargeByteArrayBuilder}
+     * @return the instance of this builder object to facilitate chaining calls
+     */
+    public synchronized LargeByteArrayBuilder append(byte[] data) {
+        return append(data, 0, data.length);
+    }
+
+    /**
+     *
+     * @param data The array holding the bytes to append
+     * @param offset The offset of the bytes in the array
+     * @param length The number of bytes to append
+     * @return the instance of this builder object to facilitate chaining calls
+     */
+    public synchronized LargeByteArrayBuilder append(byte[] data, int offset, int length) {
+        DataChunker.checkBounds(offset, length, data.length);
+        ensureCapacity(size + length);
+        write(size, data, offset, length);
+        size += length;
+        return this;
+    }
+
+    public synchronized LargeByteArrayBuilder append(byte data) {
+        ensureCapacity(size + 1);
+        blocks[(int) (size >>> blockShift)][(int) size & blockMask] = data;
+        size++;
+        return this;
+    }
+
+    /**
+     * Appends the remaining bytes of the buffer, which is read to its limit.
+     *
+     * @param data The buffer whose remaining bytes are to be appended
+     * @return the instance of this builder object to facilitate chaining calls
+     */
+    public synchronized LargeByteArrayBuilder append(ByteBuffer data) {
+        int len = data.remaining();
+        ensureCapacity(size + len);
+        while (len > 0) {
+            int from = (int) size & blockMask;
+            int n = Math.min(len, blockSize - from);
+            data.get(blocks[(int) (size >>> blockShift)], from, n);
+            size += n;
+            len -= n;
+        }
+        return this;
+    }
+
+    /**
+     * Reads the stream to its end, straight into the blocks; no intermediate
+     * buffer is used.
+     *
+     * @param in The stream to read. It is not closed.
+     * @return the number of bytes appended
+     * @throws IOException if the stream fails. The bytes read until then stay
+     * appended.
+     */
+    public synchronized long readFrom(InputStream in) throws IOException {
+        long start = size;
+        while (true) {
+            ensureCapacity(size + 1);
+            int from = (int) size & blockMask;
+            int n = in.read(blocks[(int) (size >>> blockShift)], from, blockSize - from);
+            if (n < 0) {
+                break;
+            }
+            size += n;
+        }
+        return size - start;
+    }
+
+    /**
+     *
+     * @param index The index whose byte we wish to return
+     * @return the byte at that index
+     */
+    public synchronized byte get(long index) {
+        checkRange(index, 1);
+        return blocks[(int) (index >>> blockShift)][(int) index & blockMask];
+    }
+
+    /**
+     * Copies bytes out of the builder.
+     *
+     * @param index The index in the builder to start copying from
+     * @param dst The destination array
+     * @param off The offset in the destination array
+     * @param len The number of bytes to copy
+     */
+    public synchronized void get(long index, byte[] dst, int off, int len) {
+        checkRange(index, len);
+        DataChunker.checkBounds(off, len, dst.length);
+        read(index, dst, off, len);
+    }
+
+    /**
+     *
+     * @param startIndex The index from which we wish to copy some data
+     * @param numberOfItems The number of items to copy
+     * @return a copy of the requested range
+     */
+    public synchronized byte[] get(long startIndex, int numberOfItems) {
+        checkRange(startIndex, numberOfItems);
+        byte[] data = new byte[numberOfItems];
+        read(startIndex, data, 0, numberOfItems);
+        return data;
+    }
+
+    /**
+     *
+     * @param index The index whose byte we wish to update
+     * @param number The data to set at the specified index.
+     */
+    public synchronized void set(long index, byte number) {
+        checkRange(index, 1);
+        blocks[(int) (index >>> blockShift)][(int) index & blockMask] = number;
+    }
+
+    /**
+     * Updates the data over a range of the builder
+     *
+     * @param startIndex The index where we wish to set some data
+     * @param data The data to set at the specified index.
+     * @return the instance of this builder object to facilitate chaining calls
+     */
+    public synchronized LargeByteArrayBuilder set(long startIndex, byte[] data) {
+        checkRange(startIndex, data.length);
+        write(startIndex, data, 0, data.length);
+        return this;
+    }
+
+    public synchronized long length() {
+        return size;
+    }
+
+    /**
+     * Drops the bytes from the given length on. The blocks no longer needed
+     * are let go.
+     *
+     * @param newLength The new length, no greater than the current one
+     */
+    public synchronized void truncate(long newLength) {
+        checkRange(0, newLength);
+        size = newLength;
+        int needed = (int) ((newLength + blockMask) >>> blockShift);
+        Arrays.fill(blocks, needed, blockCount, null);
+        blockCount = needed;
+    }
+
+    /**
+     *
+     * @return one view per block that holds data, in order; the last is cut
+     * at the end of the data. The views share the blocks, so nothing is
+     * copied; they are read-only.
+     */
+    public synchronized ByteBuffer[] asByteBuffers() {
+        int count = (int) ((size + blockMask) >>> blockShift);
+        ByteBuffer[] views = new ByteBuffer[count];
+        for (int i = 0; i < count; i++) {
+            int len = i == count - 1 ? (int) (size - ((long) i << blockShift)) : blockSize;
+            views[i] = ByteBuffer.wrap(blocks[i], 0, len).asReadOnlyBuffer();
+        }
+        return views;
+    }
+
+    /**
+     * Writes the contents of the builder to the stream, one block at a time.
+     *
+     * @param out The stream to write to. It is neither flushed nor closed.
+     * @return the number of bytes written
+     * @throws IOException if the stream fails
+     */
+    public synchronized long writeTo(OutputStream out) throws IOException {
+        long left = size;
+        for (int i = 0; left > 0; i++) {
+            int n = (int) Math.min(left, blockSize);
+            out.write(blocks[i], 0, n);
+            left -= n;
+        }
+        return size;
+    }
+
+    /**
+     * Writes the contents of the builder to the channel, one block at a time.
+     * The channel should be in blocking mode.
+     *
+     * @param channel The channel to write to. It is not closed.
+     * @return the number of bytes written
+     * @throws IOException if the channel fails
+     */
+    public synchronized long writeTo(WritableByteChannel channel) throws IOException {
+        long left = size;
+        for (int i = 0; left > 0; i++) {
+            int n = (int) Math.min(left, blockSize);
+            ByteBuffer src = ByteBuffer.wrap(blocks[i], 0, n);
+            while (src.hasRemaining()) {
+                channel.write(src);
+            }
+            left -= n;
+        }
+        return size;
+    }
+
+    public synchronized void clear() {
+        Arrays.fill(blocks, 0, blockCount, null);
+        blockCount = 0;
+        size = 0;
+    }
+
+    /**
+     * Lets go of the blocks. The builder may still be used afterwards.
+     */
+    @Override
+    public synchronized void close() {
+        clear();
+    }
+
+}
@@ -0,0 +1,223 @@
+package utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Breaks data into chunks as {@link DataChunker} does, but processes the
+ * chunks in parallel. Each chunk is handed to
+ * {@link ParallelDataChunker#process(ByteBuffer)} on an {@link Executor};
+ * the results come back to
+ * {@link ParallelDataChunker#chunkFound(Object, long)} one at a time, in the
+ * order of the chunks, on the thread that called a chunk method. So the
+ * costly work (hashing, compressing, encrypting) runs in parallel while the
+ * code that consumes the results stays sequential.
+ *
+ * At most <code>window</code> chunks are in flight at once; when the window
+ * is full, reading waits for the oldest chunk to be done. This bounds the
+ * memory used, however big the source.
+ * {@link ParallelDataChunker#chunksExhausted(long)} is only called once every
+ * chunk has been processed and delivered.
+ *
+ * The chunks are made by {@link ChunkSpliterator}: chunks of an array or a
+ * buffer are read-only views of it, and chunks of a file or stream are read
+ * into a buffer of their own.
+ *
+ * @param <R> The result of processing one chunk
+ * @author GBEMIRO JIBOYE <gbenroscience@gmail.com>
+ */
+public abstract class ParallelDataChunker<R> {
+
+    private final int chunkSize;
+    private final int window;
+    private final Executor executor;
+
+    /**
+     * A chunk in flight, with the number of bytes up to and including it.
+     */
+    private static final class Pending<R> {
+
+        final CompletableFuture<R> result;
+        final long bytesProcessed;
+
+        Pending(CompletableFuture<R> result, long bytesProcessed) {
+            this.result = result;
+            this.bytesProcessed = bytesProcessed;
+        }
+    }
+
+    /**
+     * Processes the chunks on the common {@link ForkJoinPool}, with a window
+     * of twice its parallelism.
+     *
+     * @param chunkSize The size of each chunk
+     */
+    public ParallelDataChunker(int chunkSize) {
+        this(chunkSize, ForkJoinPool.commonPool(), 2 * ForkJoinPool.getCommonPoolParallelism());
+    }
+
+    /**
+     *
+     * @param chunkSize The size of each chunk
+     * @param executor Runs {@link ParallelDataChunker#process(ByteBuffer)};
+     * for instance a {@link ForkJoinPool}, or an executor of virtual threads.
+     * @param window The most chunks in flight at once
+     */
+    public ParallelDataChunker(int chunkSize, Executor executor, int window) {
+        if (chunkSize <= 0) {
+            throw new IllegalArgumentException("chunkSize must be > 0");
+        }
+        if (window <= 0) {
+            throw new IllegalArgumentException("window must be > 0");
+        }
+        this.chunkSize = chunkSize;
+        this.executor = executor;
+        this.window = window;
+    }
+
+    /**
+     *
+     * @param blob The array whose data is to be broken into chunks
+     * @return the number of bytes processed
+     */
+    public long chunk(byte[] blob) {
+        return run(ChunkSpliterator.of(chunkSize, blob));
+    }
+
+    /**
+     *
+     * @param blob The buffer whose remaining bytes are to be broken into
+     * chunks. Its position and limit are left alone.
+     * @return the number of bytes processed
+     */
+    public long chunk(ByteBuffer blob) {
+        return run(ChunkSpliterator.of(chunkSize, blob));
+    }
+
+    /**
+     *
+     * @param blob A block of text to be broken into chunks of
+     * <code>chunkSize</code> chars, each encoded as UTF-8
+     * @return the number of bytes processed
+     */
+    public long chunk(String blob) {
+        return run(ChunkSpliterator.of(chunkSize, blob));
+    }
+
+    /**
+     *
+     * @param blob The File whose data is to be broken into chunks
+     * @return the number of bytes processed
+     * @throws IOException if the file cannot be read. Exceptions thrown by
+     * {@link ParallelDataChunker#process(ByteBuffer)} are rethrown as they are.
+     */
+    public long chunk(File blob) throws IOException {
+        try {
+            return run(ChunkSpliterator.of(chunkSize, blob));
+        } catch (ChunkSpliterator.ReadFailure e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     *
+     * @param blob The stream whose data is to be broken into chunks. It is
+     * closed at the end.
+     * @return the number of bytes processed
+     * @throws IOException if the stream fails. Exceptions thrown by
+     * {@link ParallelDataChunker#process(ByteBuffer)} are rethrown as they are.
+     */
+    public long chunk(InputStream blob) throws IOException {
+        try {
+            return run(ChunkSpliterator.of(chunkSize, blob));
+        } catch (ChunkSpliterator.ReadFailure e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * Feeds the chunks to the executor, delivering the oldest result
+     * whenever the window is full, and then the rest in order.
+     *
+     * If reading or processing fails, the chunks still in flight are waited
+     * for, so that none is left running, and the failure is rethrown.
+     */
+    private long run(ChunkSpliterator chunks) {
+        ArrayDeque<Pending<R>> inFlight = new ArrayDeque<>(window);
+        try (chunks) {
+            long total = 0;
+            Iterator<ByteBuffer> it = chunks.iterator();
+            while (it.hasNext()) {
+                ByteBuffer chunk = it.next();
+                total += chunk.remaining();
+                if (inFlight.size() == window) {
+                    deliver(inFlight.poll());
+                }
+                inFlight.add(new Pending<>(CompletableFuture.supplyAsync(() -> process(chunk), executor), total));
+            }
+            while (!inFlight.isEmpty()) {
+                deliver(inFlight.poll());
+            }
+            chunksExhausted(total);
+            return total;
+        } catch (RuntimeException | Error e) {
+            for (Pending<R> pending : inFlight) {
+                pending.result.handle((result, error) -> null).join();
+            }
+            throw e;
+        }
+    }
+
+    private void deliver(Pending<R> pending) {
+        R result;
+        try {
+            result = pending.result.join();
+        } catch (CompletionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw e;
+        }
+        chunkFound(result, pending.bytesProcessed);
+    }
+
+    /**
+     * Processes one chunk. Called on the executor, for several chunks at
+     * once, so it must be thread-safe.
+     *
+     * @param chunk The chunk, from its position to its limit
+     * @return the result for the chunk
+     */
+    public abstract R process(ByteBuffer chunk);
+
+    /**
+     * Called with the result of each chunk, in the order of the chunks, on
+     * the thread that called the chunk method.
+     *
+     * @param result The result of {@link ParallelDataChunker#process(ByteBuffer)}
+     * for the chunk
+     * @param bytesProcessed The total number of bytes processed including the
+     * current chunk.
+     */
+    public abstract void chunkFound(R result, long bytesProcessed);
+
+    /**
+     * Fired when all chunks have been processed and delivered.
+     *
+     * @param bytesProcessed The total number of bytes processed.
+     */
+    public abstract void chunksExhausted(long bytesProcessed);
+
+}
@@ -0,0 +1,133 @@
+package utils;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A pool of byte arrays for the segments of {@link ByteArrayBuilder}. Arrays
+ * come in power-of-two size classes from {@link SegmentPool#MIN_SEGMENT_SIZE}
+ * to {@link SegmentPool#MAX_SEGMENT_SIZE}. Each thread keeps a small cache of
+ * arrays per size class, so most acquire/release pairs touch no shared state;
+ * the overflow goes to a bounded shared queue per size class.
+ *
+ * Arrays handed back to the pool are not cleared.
+ *
+ * @author GBEMIRO JIBOYE <gbenroscience@gmail.com>
+ */
+public final class SegmentPool {
+
+    public static final int MIN_SEGMENT_SIZE = 1 << 8;
+    public static final int MAX_SEGMENT_SIZE = 1 << 20;
+
+    private static final int MIN_SHIFT = 8;
+    private static final int CLASS_COUNT = 20 - MIN_SHIFT + 1;
+    private static final int LOCAL_CACHE_SIZE = 8;
+
+    private static final SegmentPool SHARED = new SegmentPool();
+
+    private static final class Cache {
+
+        final byte[][][] stacks = new byte[CLASS_COUNT][LOCAL_CACHE_SIZE][];
+        final int[] depth = new int[CLASS_COUNT];
+    }
+
+    private final int sharedLimit;
+    private final ConcurrentLinkedQueue<byte[]>[] shared;
+    private final AtomicInteger[] sharedCounts;
+    private final ThreadLocal<Cache> local = ThreadLocal.withInitial(Cache::new);
+
+    public SegmentPool() {
+        this(64);
+    }
+
+    /**
+     *
+     * @param sharedLimit The most arrays of each size class kept in the shared
+     * queue, on top of the per-thread caches. Arrays released beyond this are
+     * left to the garbage collector.
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public SegmentPool(int sharedLimit) {
+        if (sharedLimit < 0) {
+            throw new IllegalArgumentException("sharedLimit must be >= 0");
+        }
+        this.sharedLimit = sharedLimit;
+        this.shared = new ConcurrentLinkedQueue[CLASS_COUNT];
+        this.sharedCounts = new AtomicInteger[CLASS_COUNT];
+        for (int i = 0; i < CLASS_COUNT; i++) {
+            shared[i] = new ConcurrentLinkedQueue<>();
+            sharedCounts[i] = new AtomicInteger();
+        }
+    }
+
+    /**
+     *
+     * @return a pool shared by the whole process
+     */
+    public static SegmentPool shared() {
+        return SHARED;
+    }
+
+    private static int sizeClass(int minimum) {
+        if (minimum <= MIN_SEGMENT_SIZE) {
+            return 0;
+        }
+        return 32 - Integer.numberOfLeadingZeros(minimum - 1) - MIN_SHIFT;
+    }
+
+    /**
+     *
+     * @param minimum The least size needed
+     * @return an array of at least the given size: the smallest size class
+     * that fits, or an exact, unpooled array if the size is above
+     * {@link SegmentPool#MAX_SEGMENT_SIZE}
+     */
+    public byte[] acquire(int minimum) {
+        if (minimum > MAX_SEGMENT_SIZE) {
+            return new byte[minimum];
+        }
+        int c = sizeClass(minimum);
+        Cache cache = local.get();
+        int depth = cache.depth[c];
+        if (depth > 0) {
+            byte[][] stack = cache.stacks[c];
+            byte[] segment = stack[--depth];
+            stack[depth] = null;
+            cache.depth[c] = depth;
+            return segment;
+        }
+        byte[] segment = shared[c].poll();
+        if (segment != null) {
+            sharedCounts[c].decrementAndGet();
+            return segment;
+        }
+        return new byte[MIN_SEGMENT_SIZE << c];
+    }
+
+    /**
+     * Hands an array back to the pool. Arrays that are not of a size class
+     * are ignored. The caller must not use the array afterwards.
+     *
+     * @param segment The array to hand back
+     */
+    public void release(byte[] segment) {
+        int len = segment.length;
+        if (len < MIN_SEGMENT_SIZE || len > MAX_SEGMENT_SIZE || (len & (len - 1)) != 0) {
+            return;
+        }
+        int c = sizeClass(len);
+        Cache cache = local.get();
+        int depth = cache.depth[c];
+        if (depth < LOCAL_CACHE_SIZE) {
+            cache.stacks[c][depth] = segment;
+            cache.depth[c] = depth + 1;
+            return;
+        }
+        if (sharedCounts[c].incrementAndGet() <= sharedLimit) {
+            shared[c].offer(segment);
+        } else {
+            sharedCounts[c].decrementAndGet();
+        }
+    }
+
+}
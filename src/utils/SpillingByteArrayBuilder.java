@@ -0,0 +1,301 @@
+package utils;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * A builder for payloads that may not fit on the heap. The data is kept in a
+ * {@link ByteArrayBuilder} until it grows past a threshold; it is then moved
+ * to a temporary file, which is accessed through memory-mapped regions from
+ * there on. Positions are <code>long</code>s, so the payload may grow well past
+ * 2 GB.
+ *
+ * {@link SpillingByteArrayBuilder#transferTo(WritableByteChannel)} sends the
+ * data with {@link FileChannel#transferTo(long, long, WritableByteChannel)}
+ * once it is on disk, so it never passes through user space on the way out.
+ *
+ * The temporary file is deleted when the builder is closed.
+ *
+ * @author GBEMIRO JIBOYE <gbenroscience@gmail.com>
+ */
+public class SpillingByteArrayBuilder implements AutoCloseable {
+
+    private static final int REGION_SHIFT = 26;
+    /**
+     * The size of each mapped region of the file.
+     */
+    private static final int REGION_SIZE = 1 << REGION_SHIFT;
+
+    private final long heapThreshold;
+    private final Path directory;
+
+    private ByteArrayBuilder heap = new ByteArrayBuilder();
+    private FileChannel channel;
+    private MappedByteBuffer[] regions;
+    private int regionCount;
+    private long size;
+    private boolean closed;
+
+    /**
+     *
+     * @param heapThreshold The most bytes kept on the heap. The data moves to
+     * a file in the default temporary directory when it grows past this.
+     */
+    public SpillingByteArrayBuilder(long heapThreshold) {
+        this(heapThreshold, null);
+    }
+
+    /**
+     *
+     * @param heapThreshold The most bytes kept on the heap. The data moves to
+     * a file when it grows past this.
+     * @param directory The directory for the temporary file, or null for the
+     * default temporary directory
+     */
+    public SpillingByteArrayBuilder(long heapThreshold, Path directory) {
+        if (heapThreshold < 0 || heapThreshold > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("heapThreshold must be between 0 and " + Integer.MAX_VALUE);
+        }
+        this.heapThreshold = heapThreshold;
+        this.directory = directory;
+    }
+
+    private void ensureOpen() {
+        if (closed) {
+            throw new IllegalStateException("This builder has been closed");
+        }
+    }
+
+    /**
+     *
+     * @return true if the data has been moved to the temporary file
+     */
+    public synchronized boolean isSpilled() {
+        return channel != null;
+    }
+
+    /**
+     * Makes sure the data can grow to the given size, moving it to the file
+     * if it would pass the threshold.
+     */
+    private void reserve(long newSize) throws IOException {
+        ensureOpen();
+        if (channel == null) {
+            if (newSize <= heapThreshold) {
+                return;
+            }
+            spill();
+        }
+        while ((long) regionCount << REGION_SHIFT < newSize) {
+            if (regionCount == regions.length) {
+                regions = Arrays.copyOf(regions, regionCount * 2);
+            }
+            regions[regionCount] = channel.map(FileChannel.MapMode.READ_WRITE, (long) regionCount << REGION_SHIFT, REGION_SIZE);
+            regionCount++;
+        }
+    }
+
+    private void spill() throws IOException {
+        Path file = directory == null
+                ? Files.createTempFile("bytearraybuilder", ".spill")
+                : Files.createTempFile(directory, "bytearraybuilder", ".spill");
+        channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE,
+                StandardOpenOption.DELETE_ON_CLOSE);
+        regions = new MappedByteBuffer[8];
+        heap.writeTo(channel);
+        heap.close();
+        heap = null;
+    }
+
+    /**
+     *
+     * @param data A byte array to append to the builder
+     * @return the instance of this builder object to facilitate chaining calls
+     * @throws IOException if the temporary file cannot be created or grown
+     */
+    public synchronized SpillingByteArrayBuilder append(byte[] data) throws IOException {
+        reserve(size + data.length);
+        if (channel == null) {
+            heap.append(data);
+        } else {
+            write(size, data, 0, data.length);
+        }
+        size += data.length;
+        return this;
+    }
+
+    /**
+     *
+     * @param data The byte to append to the builder
+     * @return the instance of this builder object to facilitate chaining calls
+     * @throws IOException if the temporary file cannot be created or grown
+     */
+    public synchronized SpillingByteArrayBuilder append(byte data) throws IOException {
+        reserve(size + 1);
+        if (channel == null) {
+            heap.append(data);
+        } else {
+            regions[(int) (size >>> REGION_SHIFT)].put((int) (size & (REGION_SIZE - 1)), data);
+        }
+        size++;
+        return this;
+    }
+
+    private void write(long index, byte[] src, int off, int len) {
+        while (len > 0) {
+            int from = (int) (index & (REGION_SIZE - 1));
+            int n = Math.min(len, REGION_SIZE - from);
+            regions[(int) (index >>> REGION_SHIFT)].put(from, src, off, n);
+            index += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    private void read(long index, byte[] dst, int off, int len) {
+        while (len > 0) {
+            int from = (int) (index & (REGION_SIZE - 1));
+            int n = Math.min(len, REGION_SIZE - from);
+            regions[(int) (index >>> REGION_SHIFT)].get(from, dst, off, n);
+            index += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    private void checkRange(long start, long len) {
+        if (start < 0 || len < 0) {
+            throw new IndexOutOfBoundsException("Input Index cannot be negative.");
+        }
+        if (start + len > size) {
+            throw new IndexOutOfBoundsException("Input Index (" + start + ") + Input Length >= Builder Size(" + size + ")");
+        }
+    }
+
+    /**
+     *
+     * @param index The index whose byte we wish to return
+     * @return the byte at that index
+     */
+    public synchronized byte get(long index) {
+        ensureOpen();
+        checkRange(index, 1);
+        if (channel == null) {
+            return heap.get((int) index);
+        }
+        return regions[(int) (index >>> REGION_SHIFT)].get((int) (index & (REGION_SIZE - 1)));
+    }
+
+    /**
+     *
+     * @param startIndex The index from which we wish to copy some data
+     * @param numberOfItems The number of items to copy
+     * @return a copy of the requested range
+     */
+    public synchronized byte[] get(long startIndex, int numberOfItems) {
+        ensureOpen();
+        checkRange(startIndex, numberOfItems);
+        if (numberOfItems == 0) {
+            return new byte[0];
+        }
+        if (channel == null) {
+            return heap.get((int) startIndex, numberOfItems);
+        }
+        byte[] data = new byte[numberOfItems];
+        read(startIndex, data, 0, numberOfItems);
+        return data;
+    }
+
+    /**
+     *
+     * @param index The index whose byte we wish to update
+     * @param number The data to set at the specified index.
+     */
+    public synchronized void set(long index, byte number) {
+        ensureOpen();
+        checkRange(index, 1);
+        if (channel == null) {
+            heap.set((int) index, number);
+        } else {
+            regions[(int) (index >>> REGION_SHIFT)].put((int) (index & (REGION_SIZE - 1)), number);
+        }
+    }
+
+    /**
+     * Updates the data over a range of the builder
+     *
+     * @param startIndex The index where we wish to set some data
+     * @param data The data to set at the specified index.
+     * @return the instance of this builder object to facilitate chaining calls
+     */
+    public synchronized SpillingByteArrayBuilder set(long startIndex, byte[] data) {
+        ensureOpen();
+        checkRange(startIndex, data.length);
+        if (data.length == 0) {
+            return this;
+        }
+        if (channel == null) {
+            heap.set((int) startIndex, data);
+        } else {
+            write(startIndex, data, 0, data.length);
+        }
+        return this;
+    }
+
+    public synchronized long length() {
+        return size;
+    }
+
+    /**
+     * Sends the whole contents of the builder to the channel. Once the data is
+     * on disk this is a zero-copy
+     * {@link FileChannel#transferTo(long, long, WritableByteChannel)} out of
+     * the file; before that, the heap segments are written as they are.
+     *
+     * @param target The channel to write to. It is not closed.
+     * @return the number of bytes written
+     * @throws IOException if either channel fails
+     */
+    public synchronized long transferTo(WritableByteChannel target) throws IOException {
+        ensureOpen();
+        if (channel == null) {
+            return heap.writeTo(target);
+        }
+        long position = 0;
+        while (position < size) {
+            position += channel.transferTo(position, size - position, target);
+        }
+        return size;
+    }
+
+    /**
+     * Unmaps the file, then closes and deletes it.
+     *
+     * @throws IOException if the file cannot be closed
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (heap != null) {
+            heap.close();
+            heap = null;
+        }
+        if (channel != null) {
+            for (int i = 0; i < regionCount; i++) {
+                DirectByteArrayBuilder.release(regions[i]);
+                regions[i] = null;
+            }
+            channel.close();
+        }
+    }
+
+}
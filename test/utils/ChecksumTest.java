@@ -0,0 +1,88 @@
+package utils;
+
+import java.lang.reflect.Field;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.CRC32C;
+
+/**
+ * Regression tests for the running checksum of {@link ByteArrayBuilder}. Run
+ * with <code>java utils.ChecksumTest</code>; a failure throws.
+ *
+ * @author GBEMIRO JIBOYE <gbenroscience@gmail.com>
+ */
+public class ChecksumTest {
+
+    public static void main(String[] args) throws Exception {
+        getBytesKeepsTheChecksum();
+        trimToSizeKeepsTheChecksum();
+        editsRestartTheChecksum();
+        System.out.println("ChecksumTest passed");
+    }
+
+    /**
+     * Build, getBytes() to send, then checksum() for the trailer: the merge
+     * done by getBytes() once threw the running checksum away, so checksum()
+     * read the whole payload a second time.
+     */
+    static void getBytesKeepsTheChecksum() throws Exception {
+        ByteArrayBuilder builder = new ByteArrayBuilder().trackChecksum();
+        Random random = new Random(15);
+        for (int i = 0; i < 200; i++) {
+            byte[] data = new byte[random.nextInt(3000)];
+            random.nextBytes(data);
+            builder.append(data);
+        }
+        int folded = checksummed(builder);
+        check(folded > 0, "appends folded nothing into the checksum");
+        byte[] bytes = builder.getBytes();
+        check(checksummed(builder) == folded, "getBytes() reset the checksum");
+        check(builder.checksum() == crc(bytes), "checksum after getBytes()");
+    }
+
+    static void trimToSizeKeepsTheChecksum() throws Exception {
+        ByteArrayBuilder builder = new ByteArrayBuilder().trackChecksum();
+        builder.append(new byte[10_000]);
+        builder.append((byte) 1);
+        long before = builder.checksum();
+        builder.trimToSize();
+        check(checksummed(builder) == builder.length(), "trimToSize() reset the checksum");
+        check(builder.checksum() == before, "checksum after trimToSize()");
+    }
+
+    static void editsRestartTheChecksum() {
+        ByteArrayBuilder builder = new ByteArrayBuilder().trackChecksum();
+        byte[] data = new byte[20_000];
+        new Random(16).nextBytes(data);
+        builder.append(data);
+        builder.checksum();
+        builder.set(5, (byte) 42);
+        data[5] = 42;
+        check(builder.checksum() == crc(data), "checksum after set");
+        builder.insert(100, new byte[]{1, 2, 3});
+        builder.remove(100, 3);
+        check(builder.checksum() == crc(data), "checksum after insert and remove");
+        builder.clear();
+        builder.append(new byte[]{9});
+        check(builder.checksum() == crc(new byte[]{9}), "checksum after clear");
+        check(Arrays.equals(builder.getBytes(), new byte[]{9}), "contents after clear");
+    }
+
+    private static int checksummed(ByteArrayBuilder builder) throws ReflectiveOperationException {
+        Field field = ByteArrayBuilder.class.getDeclaredField("checksummed");
+        field.setAccessible(true);
+        return field.getInt(builder);
+    }
+
+    private static long crc(byte[] data) {
+        CRC32C crc = new CRC32C();
+        crc.update(data);
+        return crc.getValue();
+    }
+
+    private static void check(boolean condition, String what) {
+        if (!condition) {
+            throw new AssertionError(what);
+        }
+    }
+}
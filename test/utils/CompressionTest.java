@@ -0,0 +1,103 @@
+package utils;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Regression tests for compressing one {@link ByteArrayBuilder} into another.
+ * Run with <code>java utils.CompressionTest</code>; a failure throws.
+ *
+ * @author GBEMIRO JIBOYE <gbenroscience@gmail.com>
+ */
+public class CompressionTest {
+
+    public static void main(String[] args) throws Exception {
+        roundTrip();
+        crossCompressionDoesNotDeadlock();
+        System.out.println("CompressionTest passed");
+    }
+
+    static void roundTrip() throws Exception {
+        ByteArrayBuilder source = new ByteArrayBuilder();
+        Random random = new Random(16);
+        for (int i = 0; i < 100; i++) {
+            byte[] data = new byte[random.nextInt(5000)];
+            for (int j = 0; j < data.length; j++) {
+                data[j] = (byte) random.nextInt(8);
+            }
+            source.append(data);
+        }
+        byte[] expected = source.getBytes();
+        source.insert(1000, new byte[]{1, 2});
+        source.remove(1000, 2);
+
+        ByteArrayBuilder compressed = new ByteArrayBuilder();
+        long written = source.compressTo(compressed, new Deflater());
+        check(written == compressed.length(), "compressed length");
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        source.compressTo(out, new Deflater());
+        check(Arrays.equals(out.toByteArray(), compressed.getBytes()), "stream and builder output differ");
+
+        ByteArrayBuilder restored = new ByteArrayBuilder();
+        compressed.inflateTo(restored, new Inflater());
+        check(Arrays.equals(restored.getBytes(), expected), "round trip");
+    }
+
+    /**
+     * a.compressTo(b) and b.compressTo(a) at the same time once deadlocked,
+     * each holding its own monitor while waiting for the other's.
+     */
+    static void crossCompressionDoesNotDeadlock() throws InterruptedException {
+        ByteArrayBuilder a = new ByteArrayBuilder();
+        ByteArrayBuilder b = new ByteArrayBuilder();
+        Throwable[] failure = new Throwable[1];
+        Thread ab = compressLoop(a, b, failure);
+        Thread ba = compressLoop(b, a, failure);
+        ab.start();
+        ba.start();
+        ab.join(30_000);
+        ba.join(30_000);
+        check(!ab.isAlive() && !ba.isAlive(), "compressing two builders into each other deadlocked");
+        synchronized (failure) {
+            if (failure[0] != null) {
+                throw new AssertionError("compression failed", failure[0]);
+            }
+        }
+    }
+
+    /**
+     * Compresses <code>from</code> into <code>to</code> over and over, each
+     * time putting <code>to</code> back to a fixed content so that neither
+     * builder grows.
+     */
+    private static Thread compressLoop(ByteArrayBuilder from, ByteArrayBuilder to, Throwable[] failure) {
+        byte[] seed = new byte[1 << 16];
+        Thread thread = new Thread(() -> {
+            Deflater deflater = new Deflater();
+            try {
+                for (int i = 0; i < 2000; i++) {
+                    from.compressTo(to, deflater);
+                    to.clear();
+                    to.append(seed);
+                }
+            } catch (Throwable t) {
+                synchronized (failure) {
+                    failure[0] = t;
+                }
+            } finally {
+                deflater.end();
+            }
+        });
+        thread.setDaemon(true);
+        return thread;
+    }
+
+    private static void check(boolean condition, String what) {
+        if (!condition) {
+            throw new AssertionError(what);
+        }
+    }
+}
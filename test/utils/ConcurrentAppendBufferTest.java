@@ -0,0 +1,101 @@
+package utils;
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Regression tests for the concurrent append mode of
+ * {@link ByteArrayBuilder}. Run with <code>java utils.ConcurrentAppendBufferTest</code>;
+ * a failure throws.
+ *
+ * @author GBEMIRO JIBOYE <gbenroscience@gmail.com>
+ */
+public class ConcurrentAppendBufferTest {
+
+    private static final int MB = 1 << 20;
+
+    public static void main(String[] args) throws Exception {
+        clearedBuilderOutlivesTheIntRange();
+        clearedBuilderOutlivesTheIntRangeWithProducers();
+        System.out.println("ConcurrentAppendBufferTest passed");
+    }
+
+    /**
+     * Offsets keep growing across clears. More than 4 GB of appends, cleared
+     * every 64 MB, once failed with an index out of bounds at 2 GB.
+     */
+    static void clearedBuilderOutlivesTheIntRange() {
+        ByteArrayBuilder builder = new ByteArrayBuilder(true);
+        byte[] chunk = new byte[MB];
+        Arrays.fill(chunk, (byte) 7);
+        long total = 0;
+        while (total <= (5L << 30)) {
+            for (int i = 0; i < 64; i++) {
+                builder.append(chunk);
+                total += chunk.length;
+            }
+            check(builder.length() == 64 * MB, "length before clear: " + builder.length());
+            builder.clear();
+            check(builder.length() == 0, "length after clear: " + builder.length());
+        }
+        byte[] last = new byte[3 * MB + 5];
+        for (int i = 0; i < last.length; i++) {
+            last[i] = (byte) i;
+        }
+        builder.append(last);
+        builder.append((byte) 9);
+        byte[] bytes = builder.getBytes();
+        check(bytes.length == last.length + 1, "final length: " + bytes.length);
+        check(Arrays.equals(Arrays.copyOf(bytes, last.length), last), "final contents");
+        check(bytes[last.length] == 9, "final byte");
+    }
+
+    /**
+     * The same, with several producers appending while the builder is
+     * cleared under them.
+     */
+    static void clearedBuilderOutlivesTheIntRangeWithProducers() throws InterruptedException {
+        ByteArrayBuilder builder = new ByteArrayBuilder(true);
+        int producers = 4;
+        long perProducer = (3L << 30) / producers;
+        byte[] chunk = new byte[256 * 1024];
+        CountDownLatch done = new CountDownLatch(producers);
+        Throwable[] failure = new Throwable[1];
+        for (int p = 0; p < producers; p++) {
+            new Thread(() -> {
+                try {
+                    for (long n = 0; n < perProducer; n += chunk.length) {
+                        builder.append(chunk);
+                    }
+                } catch (Throwable t) {
+                    synchronized (failure) {
+                        failure[0] = t;
+                    }
+                } finally {
+                    done.countDown();
+                }
+            }).start();
+        }
+        while (done.getCount() > 0) {
+            if (builder.length() >= 64 * MB) {
+                builder.clear();
+            }
+            Thread.sleep(1);
+        }
+        synchronized (failure) {
+            if (failure[0] != null) {
+                throw new AssertionError("producer failed", failure[0]);
+            }
+        }
+        check(builder.length() < 256 * MB, "length after the producers: " + builder.length());
+        builder.clear();
+        builder.append(new byte[]{1, 2, 3});
+        check(Arrays.equals(builder.getBytes(), new byte[]{1, 2, 3}), "contents after the producers");
+    }
+
+    private static void check(boolean condition, String what) {
+        if (!condition) {
+            throw new AssertionError(what);
+        }
+    }
+}
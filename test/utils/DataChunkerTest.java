@@ -0,0 +1,164 @@
+package utils;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Regression tests for {@link DataChunker}. Run with
+ * <code>java utils.DataChunkerTest</code>; a failure throws.
+ *
+ * @author GBEMIRO JIBOYE <gbenroscience@gmail.com>
+ */
+public class DataChunkerTest {
+
+    public static void main(String[] args) throws Exception {
+        mappedFileIsUnmapped();
+        callbackExceptionsPropagate();
+        readErrorsAreReported();
+        System.out.println("DataChunkerTest passed");
+    }
+
+    /**
+     * The regions of a mapped file were once left for the garbage collector
+     * to unmap, keeping the file mapped long after chunking.
+     */
+    static void mappedFileIsUnmapped() throws Exception {
+        File file = File.createTempFile("chunker", ".bin");
+        file.deleteOnExit();
+        byte[] data = new byte[100_000];
+        new Random(23).nextBytes(data);
+        Files.write(file.toPath(), data);
+
+        ByteArrayBuilder chunks = new ByteArrayBuilder();
+        DataChunker chunker = new DataChunker(4096, file, true) {
+            @Override
+            public void chunkFound(byte[] foundChunk, long bytesProcessed) {
+                chunks.append(foundChunk.clone());
+            }
+
+            @Override
+            public void chunksExhausted(long bytesProcessed) {
+            }
+        };
+        check(chunker.isValid(), "mapped chunking failed: " + chunker.getError());
+        check(Arrays.equals(chunks.getBytes(), data), "mapped chunks");
+
+        File maps = new File("/proc/self/maps");
+        if (maps.canRead()) {
+            String mappings = new String(Files.readAllBytes(Paths.get(maps.getPath())));
+            check(!mappings.contains(file.getCanonicalPath()), "the file is still mapped");
+        }
+    }
+
+    /**
+     * The buffer path once caught the exceptions of chunkFound into
+     * getError() while the other sources let them propagate. Now every
+     * source lets them propagate.
+     */
+    static void callbackExceptionsPropagate() throws Exception {
+        byte[] data = new byte[10_000];
+        File file = File.createTempFile("chunker", ".bin");
+        file.deleteOnExit();
+        Files.write(file.toPath(), data);
+        Source[] sources = {
+            () -> new Failing(data),
+            () -> new Failing(ByteBuffer.wrap(data)),
+            () -> new Failing(new ByteArrayInputStream(data)),
+            () -> new Failing(file, false),
+            () -> new Failing(file, true),
+            () -> new Failing(new String(new char[10_000]))
+        };
+        for (int i = 0; i < sources.length; i++) {
+            RuntimeException thrown = new IllegalStateException("from chunkFound");
+            Failing.THROWN.set(thrown);
+            try {
+                sources[i].chunk();
+                throw new AssertionError("source " + i + " swallowed the exception of chunkFound");
+            } catch (IllegalStateException e) {
+                check(e == thrown, "source " + i + " changed the exception of chunkFound");
+            } finally {
+                Failing.THROWN.remove();
+            }
+        }
+    }
+
+    /**
+     * The I/O errors of the stream or file being read are reported through
+     * isValid() and getError(), not thrown.
+     */
+    static void readErrorsAreReported() {
+        IOException failure = new IOException("read failed");
+        InputStream broken = new InputStream() {
+            @Override
+            public int read() throws IOException {
+                throw failure;
+            }
+        };
+        DataChunker chunker = new Failing(broken);
+        check(!chunker.isValid(), "a failed stream is valid");
+        check(chunker.getError() == failure, "stream error: " + chunker.getError());
+
+        DataChunker missing = new Failing(new File("no/such/file.bin"), false);
+        check(!missing.isValid(), "a missing file is valid");
+        check(missing.getError() != null, "no error for a missing file");
+    }
+
+    private interface Source {
+
+        void chunk() throws Exception;
+    }
+
+    /**
+     * Throws {@link Failing#THROWN}, if it is set, from every chunk. It is
+     * passed that way because the chunking runs in the constructor.
+     */
+    private static final class Failing extends DataChunker {
+
+        static final ThreadLocal<RuntimeException> THROWN = new ThreadLocal<>();
+
+        Failing(byte[] blob) {
+            super(4096, blob);
+        }
+
+        Failing(ByteBuffer blob) {
+            super(4096, blob);
+        }
+
+        Failing(InputStream blob) {
+            super(4096, blob);
+        }
+
+        Failing(File blob, boolean mapped) {
+            super(4096, blob, mapped);
+        }
+
+        Failing(String blob) {
+            super(4096, blob);
+        }
+
+        @Override
+        public void chunkFound(byte[] foundChunk, long bytesProcessed) {
+            RuntimeException thrown = THROWN.get();
+            if (thrown != null) {
+                throw thrown;
+            }
+        }
+
+        @Override
+        public void chunksExhausted(long bytesProcessed) {
+        }
+    }
+
+    private static void check(boolean condition, String what) {
+        if (!condition) {
+            throw new AssertionError(what);
+        }
+    }
+}
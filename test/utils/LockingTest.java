@@ -0,0 +1,147 @@
+package utils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Regression tests for the locking of {@link ByteArrayBuilder}, whose write
+ * lock is not reentrant. Run with <code>java utils.LockingTest</code>; a
+ * failure or a hang past the timeout throws.
+ *
+ * @author GBEMIRO JIBOYE <gbenroscience@gmail.com>
+ */
+public class LockingTest {
+
+    public static void main(String[] args) throws Exception {
+        run("nestedCalls", LockingTest::nestedCalls);
+        run("writersAndReaders", () -> writersAndReaders(false));
+        run("writersAndReadersConcurrentMode", () -> writersAndReaders(true));
+        System.out.println("LockingTest passed");
+    }
+
+    /**
+     * Public methods that once called other public methods of the builder,
+     * which would now take the lock a second time.
+     */
+    static void nestedCalls() throws Exception {
+        for (boolean concurrent : new boolean[]{false, true}) {
+            ByteArrayBuilder builder = new ByteArrayBuilder(concurrent);
+            builder.append(new byte[]{1, 2, 3});
+            builder.insert(builder.length(), new byte[]{4, 5});
+            builder.prepend(new byte[]{0});
+            check(Arrays.equals(builder.getBytes(), new byte[]{0, 1, 2, 3, 4, 5}), "insert at the end");
+            check(builder.indexOf(new byte[]{4}) == 4, "one byte pattern");
+            check(builder.lastIndexOf(new byte[]{2}) == 2, "one byte pattern backwards");
+            check(builder.freeze().length() == 6, "freeze");
+            InputStream in = builder.asInputStream();
+            check(in.readAllBytes().length == 6, "asInputStream");
+
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+            builder.compressTo(compressed, new Deflater());
+            builder.inflateFrom(new ByteArrayInputStream(compressed.toByteArray()), new Inflater());
+            check(Arrays.equals(builder.getBytes(), new byte[]{0, 1, 2, 3, 4, 5, 0, 1, 2, 3, 4, 5}), "inflateFrom");
+        }
+    }
+
+    /**
+     * Appenders, editors and readers on one builder at once; every append
+     * must land whole.
+     */
+    static void writersAndReaders(boolean concurrent) throws Exception {
+        ByteArrayBuilder builder = new ByteArrayBuilder(concurrent).trackChecksum();
+        int writers = 4;
+        int appends = 20_000;
+        CountDownLatch done = new CountDownLatch(writers);
+        Throwable[] failure = new Throwable[1];
+        for (int w = 0; w < writers; w++) {
+            int id = w;
+            start(failure, done, () -> {
+                for (int i = 0; i < appends; i++) {
+                    switch (i % 4) {
+                        case 0:
+                            builder.putInt(id);
+                            break;
+                        case 1:
+                            builder.append(new byte[]{1, 2, 3, 4});
+                            break;
+                        case 2:
+                            builder.appendAscii("abcd");
+                            break;
+                        default:
+                            builder.putFloat(1f);
+                    }
+                }
+            });
+        }
+        CountDownLatch readersDone = new CountDownLatch(1);
+        start(failure, readersDone, () -> {
+            while (done.getCount() > 0) {
+                builder.length();
+                builder.indexOf((byte) 9);
+                builder.checksum();
+                builder.writeTo(new ByteArrayOutputStream());
+                if (builder.length() > 0) {
+                    builder.get(0);
+                }
+            }
+        });
+        done.await();
+        readersDone.await();
+        synchronized (failure) {
+            if (failure[0] != null) {
+                throw new AssertionError("a thread failed", failure[0]);
+            }
+        }
+        check(builder.length() == writers * appends * 4, "length: " + builder.length());
+        check(builder.getBytes().length % 4 == 0, "torn append");
+    }
+
+    private interface Body {
+
+        void run() throws Exception;
+    }
+
+    private static void start(Throwable[] failure, CountDownLatch done, Body body) {
+        Thread thread = new Thread(() -> {
+            try {
+                body.run();
+            } catch (Throwable t) {
+                synchronized (failure) {
+                    failure[0] = t;
+                }
+            } finally {
+                done.countDown();
+            }
+        });
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Runs a test on its own thread, so that a deadlock fails it instead of
+     * hanging.
+     */
+    private static void run(String name, Body test) throws Exception {
+        CountDownLatch done = new CountDownLatch(1);
+        Throwable[] failure = new Throwable[1];
+        start(failure, done, test);
+        if (!done.await(60, TimeUnit.SECONDS)) {
+            throw new AssertionError(name + " deadlocked");
+        }
+        if (failure[0] != null) {
+            throw new AssertionError(name + " failed", failure[0]);
+        }
+    }
+
+    private static void check(boolean condition, String what) {
+        if (!condition) {
+            throw new AssertionError(what);
+        }
+    }
+}